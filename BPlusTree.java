@@ -0,0 +1,516 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * B+ tree version of the BTree. It uses the same node file and cache as
+ * the BTree, but the counted keys only live in the leaves. Internal nodes
+ * hold copies of keys that separate their children and no counters, and
+ * child i of an internal node holds the keys that are greater than or
+ * equal to key i-1 and less than key i. Each leaf keeps the file position
+ * of the leaf to its right in children[0], which leaves do not use
+ * otherwise, so every key can be visited in order by following the leaves.
+ *
+ * Leaves are written without their unused child slots and internal nodes
+ * without counters, see BTreeNode.writeBPlus, so an internal node has its
+ * own degree, the largest that fits in the node slot of the leaves. That
+ * degree is kept in the superblock, so a B+ tree is always in a file with
+ * one.
+ *
+ * The tree is picked with the BPLUS format flag when it is created and the
+ * flag is saved in the superblock, so BTree.open gives back a BPlusTree.
+ *
+ * @author Ben Mcavoy
+ */
+public class BPlusTree extends BTree {
+
+	/**
+	 * Constructor for creating a new B+ tree.
+	 *
+	 * @param t degree of the tree
+	 * @param k subsequence length
+	 * @param gbk filename for the gbk file
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @param flags format flags, BPLUS is always added
+	 * @throws IOException if gbk file is not accessible
+	 */
+	public BPlusTree(int t, int k, String gbk, Cache cache, int flags) throws IOException {
+		super(t, k, gbk, cache, flags | BPLUS);
+	}
+
+	/**
+	 * Constructor used for searching an exsisting B+ tree.
+	 *
+	 * @param BtreeFile file containing the tree
+	 * @param metadata file containing tree meta data
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @throws IOException if tree or meta data file are not acessible.
+	 */
+	public BPlusTree(File BtreeFile, File metadata, Cache cache) throws IOException {
+		super(BtreeFile, metadata, cache);
+	}
+
+	/**
+	 * Constructor used for searching an exsisting B+ tree or adding more
+	 * keys to it.
+	 *
+	 * @param BtreeFile file containing the tree
+	 * @param metadata file containing tree meta data, may be null for a file with a superblock
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @param writable true to open the tree for inserts
+	 * @throws IOException if tree or meta data file are not acessible.
+	 */
+	public BPlusTree(File BtreeFile, File metadata, Cache cache, boolean writable) throws IOException {
+		super(BtreeFile, metadata, cache, writable);
+	}
+
+	/**
+	 * Finds the largest degree of the internal nodes that fit in a slot.
+	 *
+	 * @param slotSize number of bytes in a node slot
+	 * @param k subsequence length
+	 * @param flags format flags of the tree
+	 * @return largest degree of an internal node that fits, at least 2
+	 */
+	static int innerDegreeFor(int slotSize, int k, int flags) {
+		boolean compressed = (flags & COMPRESSED) != 0;
+		int t = 2;
+		while ((compressed ? BTreeNode.packedInnerSize(t + 1, k) : BTreeNode.innerSize(t + 1)) <= slotSize) {
+			t++;
+		}
+		return t;
+	}
+
+	/**
+	 * Gets the degree of the internal nodes.
+	 *
+	 * @return degree of an internal node
+	 */
+	int innerDegree() {
+		return superblock.innerDegree;
+	}
+
+	@Override
+	BTreeNode newInternalNode() {
+		BTreeNode node = new BTreeNode(innerDegree(), allocateNode(), false);
+		node.isLeaf = false;
+		return node;
+	}
+
+	@Override
+	void encode(BTreeNode node, ByteBuffer page) {
+		if (isCompressed()) {
+			node.writePacked(page, store.pageSize());
+		}
+		else {
+			node.writeBPlus(page);
+		}
+	}
+
+	@Override
+	BTreeNode decode(ByteBuffer page, long filePos) {
+		//both layouts start with the leaf flag, which picks the kind of node to read into
+		BTreeNode node = page.get(page.position()) != 0
+				? new BTreeNode(getDegree(), filePos)
+				: new BTreeNode(innerDegree(), filePos, false);
+		if (isCompressed()) {
+			node.readPacked(page, store.pageSize(), filePos);
+		}
+		else {
+			node.readBPlus(page, filePos);
+		}
+		return node;
+	}
+
+	/**
+	 * Gets the file position of the leaf to the right of a leaf.
+	 *
+	 * @param leaf leaf node
+	 * @return file position of the next leaf, -1 for the last leaf
+	 */
+	public static long nextLeaf(BTreeNode leaf) {
+		return leaf.children[0];
+	}
+
+	/**
+	 * Finds the child of an internal node that covers a key.
+	 *
+	 * @param x internal node
+	 * @param key key to look for
+	 * @return index of the first separator greater than the key
+	 */
+	private static int childIndex(BTreeNode x, long key) {
+		int i = x.find(key);
+		return i >= 0 ? i + 1 : -i - 1;
+	}
+
+	/**
+	 * Adds the key to the leaf that covers it, splitting full nodes on
+	 * the way down. If the key is already in the leaf its frequency is
+	 * incremented.
+	 *
+	 * @param x node to start from, must not be full
+	 * @param key key to be inserted into the tree
+	 * @param count number of occurrences to add
+	 */
+	@Override
+	public void insertNonFull(BTreeNode x, long key, int count) {
+		while (!x.isLeaf) {
+			int i = childIndex(x, key);
+			BTreeNode c = diskRead(x.children[i]);
+			//leaves and internal nodes can have different degrees
+			if (c.n == c.keys.length) {
+				splitChild(x, i, c);
+				if (key >= x.keys[i]) {
+					c = diskRead(x.children[i+1]);
+				}
+			}
+			x = c;
+		}
+		int i = x.find(key);
+		if (i >= 0) {
+			x.freqs[i] += count;
+		}
+		else {
+			x.insertAt(-i - 1, key, count);
+		}
+		nodeWrite(x);
+	}
+
+	/**
+	 * Adds a batch of keys, one insert per key.
+	 *
+	 * @param keys keys to add, sorted ascending
+	 * @param counts number of occurrences to add for each key
+	 */
+	@Override
+	public void insertBatch(long[] keys, int[] counts) {
+		for (int i = 0; i < keys.length; i++) {
+			insert(keys[i], counts[i]);
+		}
+	}
+
+	/**
+	 * Splits a full child. An internal child is split like in the BTree,
+	 * with the degree of the internal nodes. A leaf keeps its lower t-1
+	 * keys, the upper t keys move to a new leaf that is linked in after it,
+	 * and a copy of the first key of the new leaf goes up into the parent
+	 * to separate the two.
+	 *
+	 * @param x The parent node of y
+	 * @param i location of y in parent node array
+	 * @param y The node being split
+	 */
+	@Override
+	public void splitChild(BTreeNode x, int i, BTreeNode y) {
+		if (!y.isLeaf) {
+			splitInner(x, i, y);
+			return;
+		}
+		int t = getDegree();
+		BTreeNode z = new BTreeNode(t, allocateNode());
+		z.isLeaf = true;
+		System.arraycopy(y.keys, t-1, z.keys, 0, t);
+		System.arraycopy(y.freqs, t-1, z.freqs, 0, t);
+		y.clearKeys(t-1, 2*t-1);
+		z.n = t;
+		y.n = t-1;
+		z.children[0] = y.children[0];
+		y.children[0] = z.filePos;
+
+		System.arraycopy(x.children, i+1, x.children, i+2, x.n-i);
+		x.children[i+1] = z.filePos;
+		x.insertAt(i, z.keys[0], 0);
+		nodeWrite(z);
+		nodeWrite(y);
+		nodeWrite(x);
+		if (metrics != null) {
+			metrics.splits.increment();
+		}
+	}
+
+	/**
+	 * Splits a full internal node around its middle separator, which moves
+	 * up into the parent.
+	 */
+	private void splitInner(BTreeNode x, int i, BTreeNode y) {
+		int t = innerDegree();
+		BTreeNode z = newInternalNode();
+		System.arraycopy(y.keys, t, z.keys, 0, t-1);
+		System.arraycopy(y.children, t, z.children, 0, t);
+		z.n = t-1;
+		long midKey = y.keys[t-1];
+		y.clearKeys(t-1, 2*t-1);
+		Arrays.fill(y.children, t, 2*t, -1L);
+		y.n = t-1;
+
+		System.arraycopy(x.children, i+1, x.children, i+2, x.n-i);
+		x.children[i+1] = z.filePos;
+		x.insertAt(i, midKey, 0);
+		nodeWrite(z);
+		nodeWrite(y);
+		nodeWrite(x);
+		if (metrics != null) {
+			metrics.splits.increment();
+		}
+	}
+
+	/**
+	 * Finds the leaf holding a key.
+	 *
+	 * @param x node to start search at
+	 * @param key key to locate in the tree
+	 * @return null if not found, otherwise returns the leaf containing key.
+	 */
+	@Override
+	public BTreeNode search(BTreeNode x, long key) {
+		while (!x.isLeaf) {
+			x = diskRead(x.children[childIndex(x, key)]);
+		}
+		return x.find(key) >= 0 ? x : null;
+	}
+
+	/**
+	 * Looks up many keys with one walk down the tree, reading every node
+	 * at most once.
+	 *
+	 * @param sortedKeys keys to look up, sorted ascending
+	 * @return frequency of each key in the same order, 0 if a key is not in the tree
+	 */
+	@Override
+	public int[] lookupAll(long[] sortedKeys) {
+		int[] counts = new int[sortedKeys.length];
+		if (sortedKeys.length > 0) {
+			lookupAll(root, sortedKeys, 0, sortedKeys.length, counts);
+		}
+		return counts;
+	}
+
+	/**
+	 * Looks up the keys from index from up to, not including, to in
+	 * the subtree rooted at x.
+	 */
+	private void lookupAll(BTreeNode x, long[] keys, int from, int to, int[] counts) {
+		if (x.isLeaf) {
+			int i = 0;
+			for (int j = from; j < to; j++) {
+				while (i < x.n && x.keys[i] < keys[j]) {
+					i++;
+				}
+				if (i < x.n && x.keys[i] == keys[j]) {
+					counts[j] = x.freqs[i];
+				}
+			}
+			return;
+		}
+		int j = from;
+		for (int i = 0; i <= x.n && j < to; i++) {
+			//every key below separator i belongs to child i
+			int end = j;
+			while (end < to && (i == x.n || keys[end] < x.keys[i])) {
+				end++;
+			}
+			if (end > j) {
+				lookupAll(diskRead(x.children[i]), keys, j, end, counts);
+			}
+			j = end;
+		}
+	}
+
+	/**
+	 * Opens a cursor that walks the leaf chain.
+	 *
+	 * @param lowerBound smallest key the cursor should return
+	 * @return cursor over the keys in ascending order
+	 */
+	@Override
+	public BTreeCursor cursor(long lowerBound) {
+		return cursor(lowerBound, null);
+	}
+
+	/**
+	 * Opens a cursor that walks the leaf chain and reads the next leaves
+	 * ahead in the background.
+	 *
+	 * @param lowerBound smallest key the cursor should return
+	 * @param prefetcher reads leaves ahead, null for a plain cursor
+	 * @return cursor over the keys in ascending order
+	 */
+	@Override
+	public BTreeCursor cursor(long lowerBound, NodePrefetcher prefetcher) {
+		BTreeCursor cursor = new BPlusCursor(this, prefetcher);
+		cursor.seek(lowerBound);
+		return cursor;
+	}
+
+	/**
+	 * Prints all keys by going down to the first leaf under root_node and
+	 * following the leaf chain from there to the end.
+	 *
+	 * @param root_node node to start the traversal at.
+	 * @param debug allows aditional print functions for troubleshooting
+	 */
+	@Override
+	public void print(BTreeNode root_node, boolean debug) {
+		BTreeNode x = root_node;
+		while (!x.isLeaf) {
+			x = diskRead(x.children[0]);
+		}
+		while (true) {
+			printLeaf(x);
+			if (nextLeaf(x) == -1L) {
+				return;
+			}
+			x = diskRead(nextLeaf(x));
+		}
+	}
+
+	/**
+	 * Prints all keys by following the leaf chain, with the next leaves
+	 * read ahead so the reads overlap with the printing.
+	 *
+	 * @param prefetcher reads leaves ahead
+	 */
+	@Override
+	public void print(NodePrefetcher prefetcher) {
+		BPlusCursor cursor = new BPlusCursor(this, prefetcher);
+		cursor.seek(0L);
+		do {
+			printLeaf(cursor.leaf);
+		} while (cursor.advance());
+	}
+
+	/**
+	 * Prints the keys of one leaf with their frequencies.
+	 */
+	private void printLeaf(BTreeNode x) {
+		for (int i = 0; i < x.n; i++) {
+			System.out.print(x.freqs[i] + " ");
+			System.out.print(longToSequence(x.keys[i], getSequenceLength()));
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Cursor over a B+ tree. It goes down to the leaf that covers the lower
+	 * bound once and then only moves along the leaf chain.
+	 *
+	 * With a NodePrefetcher the cursor keeps the lowest internal node above
+	 * the current leaf, and the leaves after the current one under that
+	 * node, up to the prefetch window, are already being read. The next leaf
+	 * on the chain is always read ahead as well, which covers the step from
+	 * the last leaf under one internal node to the first under the next.
+	 */
+	private static class BPlusCursor extends BTreeCursor {
+		private final NodePrefetcher prefetcher;
+		private BTreeNode leaf;
+		private int index;
+		//internal node above the leaf and the leaf's place in it, null for a tree that is one leaf
+		private BTreeNode parent;
+		private int slot;
+
+		BPlusCursor(BTree bt, NodePrefetcher prefetcher) {
+			super(bt, prefetcher);
+			this.prefetcher = prefetcher;
+		}
+
+		@Override
+		public void seek(long lowerBound) {
+			BTreeNode x = bt.root;
+			parent = null;
+			while (!x.isLeaf) {
+				parent = x;
+				slot = childIndex(x, lowerBound);
+				x = bt.diskRead(x.children[slot]);
+			}
+			leaf = x;
+			index = leaf.find(lowerBound);
+			if (index < 0) {
+				index = -index - 1;
+			}
+			if (prefetcher != null) {
+				if (parent != null) {
+					for (int c = slot + 1; c <= Math.min(parent.n, slot + prefetcher.window()); c++) {
+						prefetch(parent.children[c]);
+					}
+				}
+				prefetch(nextLeaf(leaf));
+			}
+		}
+
+		@Override
+		public boolean next() {
+			while (leaf != null) {
+				if (index < leaf.n) {
+					key = leaf.keys[index];
+					freq = leaf.freqs[index];
+					index++;
+					return true;
+				}
+				advance();
+			}
+			return false;
+		}
+
+		/**
+		 * Moves to the start of the next leaf.
+		 *
+		 * @return false after the last leaf
+		 */
+		boolean advance() {
+			long next = nextLeaf(leaf);
+			if (next == -1L) {
+				leaf = null;
+				return false;
+			}
+			leaf = read(next);
+			index = 0;
+			if (prefetcher != null) {
+				readAhead();
+			}
+			return true;
+		}
+
+		/**
+		 * Starts reading the leaves that come after the one just moved to.
+		 */
+		private void readAhead() {
+			slot++;
+			if (parent == null || slot > parent.n || parent.children[slot] != leaf.filePos) {
+				//the leaf is under the next internal node, which is found from the root
+				findParent();
+				if (parent != null) {
+					for (int c = slot + 1; c <= Math.min(parent.n, slot + prefetcher.window()); c++) {
+						prefetch(parent.children[c]);
+					}
+				}
+			}
+			else if (slot + prefetcher.window() <= parent.n) {
+				prefetch(parent.children[slot + prefetcher.window()]);
+			}
+			prefetch(nextLeaf(leaf));
+		}
+
+		/**
+		 * Goes down from the root to the internal node that points at the
+		 * current leaf. Internal nodes are few and usually cached.
+		 */
+		private void findParent() {
+			parent = null;
+			if (leaf.n == 0) {
+				return;
+			}
+			BTreeNode x = bt.root;
+			while (!x.isLeaf) {
+				int i = childIndex(x, leaf.keys[0]);
+				if (x.children[i] == leaf.filePos) {
+					parent = x;
+					slot = i;
+					return;
+				}
+				x = bt.diskRead(x.children[i]);
+			}
+		}
+	}
+}
@@ -1,29 +1,105 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
 /**
  *  a B-tree is a self-balancing tree data structure that keeps data sorted and allows searches, 
  *  sequential access, insertions, and deletions in logarithmic time. In this case there is no
  *  delete method because we are only interested in building and searching the tree.
  *  
- * 	This BTree stores gene subsequences. Each sequence is stored in a TreeObject.
+ * 	This BTree stores gene subsequences. Each sequence is stored as a 2 bit per base
+ *  key with a counter, in the primitive key arrays of a BTreeNode.
  * 
  *  @author Ben McAvoy, Ben Peterson
  */
 public class BTree{
 	
+	//characters for the 2 bit base codes
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	
+	/** format flag: the first base of a subsequence is in the highest bits of its key */
+	public static final int LEX_ORDER = 1;
+	/** format flag: the tree is a BPlusTree, counts are only kept in linked leaves */
+	public static final int BPLUS = 2;
+	/** format flag: nodes are written in the compressed layout of BTreeNode.writePacked */
+	public static final int COMPRESSED = 4;
+	/** format flag: a subsequence and its reverse complement share one key, the smaller of their two keys */
+	public static final int CANONICAL = 8;
+	
+	//orders keys from the worst to the best, lower frequencies first and larger keys first among equal frequencies
+	private static final Comparator<TreeObject> TOP_ORDER = new Comparator<TreeObject>() {
+		public int compare(TreeObject a, TreeObject b) {
+			if (a.freq != b.freq) return Integer.compare(a.freq, b.freq);
+			return Long.compare(b.key, a.key);
+		}
+	};
+	
+	//counts a thread that takes a node latch, making the latch for the first one
+	private static final BiFunction<Long, Latch, Latch> ADD_USER = new BiFunction<Long, Latch, Latch>() {
+		public Latch apply(Long filePos, Latch latch) {
+			if (latch == null) {
+				latch = new Latch();
+			}
+			latch.users++;
+			return latch;
+		}
+	};
+	
+	//counts a thread that lets go of a node latch, removing the latch after the last one
+	private static final BiFunction<Long, Latch, Latch> REMOVE_USER = new BiFunction<Long, Latch, Latch>() {
+		public Latch apply(Long filePos, Latch latch) {
+			//returning null removes the latch from the map
+			return --latch.users == 0 ? null : latch;
+		}
+	};
+	
 	private int t;
 	private int seqLength;
+	private int flags;
 	BTreeNode root;
 	File BtreeFile;
-	RandomAccessFile btreeRAF;
+	PageStore store;
 	Cache cache;
+	//header of the BTree file, null for trees in the older two file format
+	Superblock superblock;
+	private boolean readOnly;
+	//latch for each node by file position that a thread holds or waits for, only used by concurrent inserts
+	private ConcurrentHashMap<Long, Latch> latches;
+	//held while the root is looked at or replaced by a concurrent insert
+	private final ReentrantLock rootLatch = new ReentrantLock();
+	private volatile boolean concurrent;
+	//changed nodes each thread pushed out of the cache during a concurrent insert, written once it holds no latches
+	private final ThreadLocal<List<BTreeNode>> writeBacks = new ThreadLocal<List<BTreeNode>>() {
+		protected List<BTreeNode> initialValue() {
+			return new ArrayList<BTreeNode>();
+		}
+	};
+	//nodes of the top levels of the tree, kept on the heap for good
+	private int pinLevels;
+	private ConcurrentHashMap<Long, BTreeNode> pinned;
+	private Set<Long> pinnedDirty;
+	//raw pages under the node cache, null if there is none
+	private PageCache pageCache;
+	//counters of what the tree does, null when nothing is counted
+	BTreeMetrics metrics;
+	//number of levels, 0 until it is known
+	private volatile int height;
 	
 	/**
-	 * Constructor for creating a new BTree. Creates the files to store the BTree and its
-	 * meta data.
+	 * Constructor for creating a new BTree. Creates the file to store the BTree,
+	 * with its meta data in the superblock at the start of the file.
 	 * 
 	 * @param t degree of BTree
 	 * @param k subsequence length 
@@ -32,44 +108,187 @@ public class BTree{
 	 * @throws IOException if gbk file is not accessible
 	 */
 	public BTree(int t, int k, String gbk, Cache cache) throws IOException{
+		this(t, k, gbk, cache, 0);
+	}
+	
+	/**
+	 * Constructor for creating a new BTree with format options. The options
+	 * are saved in the superblock so the tree is read back the same way.
+	 * 
+	 * @param t degree of BTree
+	 * @param k subsequence length 
+	 * @param gbk filename for the gbk file
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @param flags format flags such as LEX_ORDER, 0 for none
+	 * @throws IOException if gbk file is not accessible
+	 */
+	public BTree(int t, int k, String gbk, Cache cache, int flags) throws IOException{
 		this.t = t;
 		this.seqLength = k;
 		this.cache = cache;
-		File metadata = new File(gbk + ".btree.metadata." + k + "." + t);
-		
-		btreeRAF = new RandomAccessFile(metadata, "rw");
-		btreeRAF.writeInt(t); //write tree degree to metadata file
-		btreeRAF.writeInt(k); //write sequence length to metadata file
-		btreeRAF.close();
+		this.flags = flags;
 
-		root = new BTreeNode(t,0);
-		BtreeFile = new File(gbk + ".btree.data." + k + "." + t);			
+		BtreeFile = new File(gbk + ".btree.data." + k + "." + t);
+		superblock = new Superblock(t, k, flags, nodeSize(t, k, flags));
+		if ((flags & BPLUS) != 0) {
+			//internal nodes have no counters, so more of them fit in a slot than in a leaf
+			superblock.innerDegree = BPlusTree.innerDegreeFor(superblock.slotSize, k, flags);
+		}
+		store = new PageStore(BtreeFile, superblock.slotSize, false);
+		store.allocate(); //page 0 is the superblock
+		root = new BTreeNode(t, store.allocate());
+		height = 1;
 		diskWrite(root);
+		writeSuperblock();
 	}
 	
 	/**
 	 * Constructor used for searching an exsisting BTree. Loads the BTree
-	 * from the passed in files. 
+	 * from the passed in files. If the BTree file starts with a superblock
+	 * the meta data file is not used. Otherwise the tree is in the older
+	 * format, the meta data comes from the meta data file and the root is
+	 * at file position 0.
+	 * 
+	 * A tree opened this way is never changed, so it can be searched from 
+	 * many threads at once as long as the cache is null or a StripedCache.
 	 * 
 	 * @param BtreeFile file containing the BTree
-	 * @param metadata file containing BTree meta data
+	 * @param metadata file containing BTree meta data, may be null for a file with a superblock
 	 * @param cache cache to use to limit disk read write. Null if no cache present.
 	 * @throws IOException if BTree or meta data file are not acessible.
 	 */
 	public BTree(File BtreeFile, File metadata, Cache cache) throws IOException {	
-		btreeRAF = new RandomAccessFile(metadata, "r");
-		this.t = btreeRAF.readInt(); //read in degree in terms of t
-		this.seqLength = btreeRAF.readInt(); //sequence length (k) 
-		btreeRAF.close();
-		
+		this(BtreeFile, metadata, cache, false);
+	}
+	
+	/**
+	 * Constructor used for searching an exsisting BTree or for adding more 
+	 * subsequences to it. Only a BTree file with a superblock can be opened 
+	 * for writing. New nodes go to the end of the file and the superblock 
+	 * is updated when the tree is closed.
+	 * 
+	 * @param BtreeFile file containing the BTree
+	 * @param metadata file containing BTree meta data, may be null for a file with a superblock
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @param writable true to open the tree for inserts
+	 * @throws IOException if BTree or meta data file are not acessible, or 
+	 * a BTree file in the older format is opened for writing.
+	 */
+	public BTree(File BtreeFile, File metadata, Cache cache, boolean writable) throws IOException {	
 		this.BtreeFile = BtreeFile;
-		btreeRAF = new RandomAccessFile(BtreeFile, "r");
-		root = diskRead(0);		
-		btreeRAF.close();
+		this.readOnly = !writable;
+		superblock = Superblock.read(BtreeFile);
+		if (superblock != null) {
+			this.t = superblock.degree;
+			this.seqLength = superblock.seqLength;
+			this.flags = superblock.flags;
+			store = new PageStore(BtreeFile, superblock.slotSize, readOnly, false);
+			root = diskRead(superblock.rootPage * superblock.slotSize);
+		}
+		else if (writable) {
+			//the older format keeps the root at file position 0, which inserts no longer do
+			throw new IOException(BtreeFile + " has no superblock and can only be opened for searching");
+		}
+		else {
+			if (metadata == null || !metadata.exists()) {
+				throw new IOException(BtreeFile + " has no superblock and no meta data file");
+			}
+			RandomAccessFile metaRAF = new RandomAccessFile(metadata, "r");
+			this.t = metaRAF.readInt(); //read in degree in terms of t
+			this.seqLength = metaRAF.readInt(); //sequence length (k) 
+			//older meta data files stop after the sequence length
+			if (metaRAF.length() >= 12) this.flags = metaRAF.readInt();
+			metaRAF.close();
+			if ((flags & BPLUS) != 0) {
+				throw new IOException(BtreeFile + " is a B+ tree without a superblock, B+ trees are only read from files that have one");
+			}
+			
+			store = new PageStore(BtreeFile, nodeSize(t, seqLength, flags), true);
+			root = diskRead(0);
+		}
 		
 		this.cache = cache;
 	}
 	
+	/**
+	 * Constructor used for searching an exsisting BTree that has a superblock.
+	 * 
+	 * @param BtreeFile file containing the BTree
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @throws IOException if the BTree file is not acessible or has no superblock.
+	 */
+	public BTree(File BtreeFile, Cache cache) throws IOException {
+		this(BtreeFile, null, cache);
+	}
+	
+	/**
+	 * Creates a new tree of the kind chosen by the format flags.
+	 * 
+	 * @param t degree of BTree
+	 * @param k subsequence length 
+	 * @param gbk filename for the gbk file
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @param flags format flags, BPLUS creates a BPlusTree
+	 * @return the new tree
+	 * @throws IOException if the tree files can not be created
+	 */
+	public static BTree create(int t, int k, String gbk, Cache cache, int flags) throws IOException {
+		if ((flags & BPLUS) != 0) {
+			return new BPlusTree(t, k, gbk, cache, flags);
+		}
+		return new BTree(t, k, gbk, cache, flags);
+	}
+	
+	/**
+	 * Opens an existing tree of the kind recorded in its meta data.
+	 * 
+	 * @param BtreeFile file containing the BTree
+	 * @param metadata file containing BTree meta data, only used for files without a superblock
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @return the tree
+	 * @throws IOException if BTree or meta data file are not acessible.
+	 */
+	public static BTree open(File BtreeFile, File metadata, Cache cache) throws IOException {
+		int flags = 0;
+		Superblock sb = Superblock.read(BtreeFile);
+		if (sb != null) {
+			flags = sb.flags;
+		}
+		else if (metadata != null && metadata.exists()) {
+			RandomAccessFile metaRAF = new RandomAccessFile(metadata, "r");
+			if (metaRAF.length() >= 12) {
+				metaRAF.seek(8);
+				flags = metaRAF.readInt();
+			}
+			metaRAF.close();
+		}
+		if ((flags & BPLUS) != 0) {
+			return new BPlusTree(BtreeFile, metadata, cache);
+		}
+		return new BTree(BtreeFile, metadata, cache);
+	}
+	
+	/**
+	 * Opens an existing tree so more subsequences can be inserted into it.
+	 * The degree, sequence length, format flags and root are restored from 
+	 * the superblock. The tree must be closed to save the superblock.
+	 * 
+	 * @param BtreeFile file containing the BTree, with a superblock
+	 * @param cache cache to use to limit disk read write. Null if no cache present.
+	 * @return the tree, a BPlusTree if it was created as one
+	 * @throws IOException if the file is not acessible or has no superblock.
+	 */
+	public static BTree openForAppend(File BtreeFile, Cache cache) throws IOException {
+		Superblock sb = Superblock.read(BtreeFile);
+		if (sb == null) {
+			throw new IOException(BtreeFile + " has no superblock and can only be opened for searching");
+		}
+		if ((sb.flags & BPLUS) != 0) {
+			return new BPlusTree(BtreeFile, null, cache, true);
+		}
+		return new BTree(BtreeFile, null, cache, true);
+	}
+	
 	/**
 	 * Inserts a new key into the tree. If the key 
 	 * is already present it increments the frequency 
@@ -78,71 +297,437 @@ public class BTree{
 	 * @param key key to be added to the BTree
 	 */
 	public void insert(long key)  {
-		//check if key is already inserted
-		BTreeNode duplicate = search(root, key);
-		if(duplicate != null) {
-			for(int i=0; i<duplicate.keys.length; i++) {
-				if(duplicate.keys[i].key == key) {
-					duplicate.keys[i].freq++;
-					nodeWrite(duplicate);
-					return;
+		insert(key, 1);
+	}
+	
+	/**
+	 * Adds count occurrences of a key to the tree in a single pass from
+	 * the root. Full nodes are split on the way down, and the frequency is 
+	 * incremented wherever the key is found. If the key is not in the tree
+	 * it is added to a leaf with the given count.
+	 * 
+	 * @param key key to be added to the BTree
+	 * @param count number of occurrences to add
+	 */
+	public void insert(long key, int count)  {
+		long start = metrics != null ? System.nanoTime() : 0;
+		BTreeNode r = this.root;
+		if(r.n == r.keys.length) {
+			insertNonFull(splitRoot(),key,count);
+		}else {
+			insertNonFull(root,key,count);
+		}
+		if (metrics != null) {
+			metrics.recordInserts(System.nanoTime() - start, 1);
+		}
+	}
+	
+	/**
+	 * Adds a batch of keys to the tree. The keys must be sorted in 
+	 * ascending order without repeats. Each key is added the same way 
+	 * as insert(key, count), but the path from the last descent is kept, 
+	 * so a key only walks down from the deepest node that still covers 
+	 * it instead of starting over at the root.
+	 * 
+	 * @param keys keys to add, sorted ascending
+	 * @param counts number of occurrences to add for each key
+	 */
+	public void insertBatch(long[] keys, int[] counts) {
+		//path[d] is the node at depth d of the last descent, it covers the
+		//keys greater than low[d] and less than high[d]
+		BTreeNode[] path = new BTreeNode[8];
+		long[] low = new long[8];
+		long[] high = new long[8];
+		int depth = -1;
+		long start = metrics != null ? System.nanoTime() : 0;
+		
+		for(int k=0; k<keys.length; k++) {
+			long key = keys[k];
+			int count = counts[k];
+			//back up to a node that covers the key and has room for a split child.
+			//keys are ascending so only the upper bound needs checking
+			while(depth >= 0 && (key >= high[depth] || path[depth].n == 2*t-1)) {
+				depth--;
+			}
+			if(depth < 0) {
+				if(root.n == 2*t-1) {
+					splitRoot();
 				}
+				depth = 0;
+				path[0] = root;
+				low[0] = Long.MIN_VALUE;
+				high[0] = Long.MAX_VALUE;
+			}
+			
+			BTreeNode x = path[depth];
+			while(true) {
+				int i = x.find(key);
+				if( i >= 0 ) {
+					x.freqs[i] += count;
+					nodeWrite(x);
+					break;
+				}
+				i = -i - 1;
+				if(x.isLeaf) {
+					x.insertAt(i, key, count);
+					nodeWrite(x);
+					break;
+				}
+				BTreeNode c = diskRead(x.children[i]);
+				if( c.n == 2*t-1 ) {
+					splitChild(x, i, c);
+					if( key == x.keys[i] ) {
+						x.freqs[i] += count;
+						nodeWrite(x);
+						break;
+					}
+					if( key > x.keys[i] ) {
+						i++;
+						c = diskRead(x.children[i]);
+					}
+				}
+				//remember the child and the range of keys it covers
+				if(depth + 1 == path.length) {
+					path = Arrays.copyOf(path, path.length * 2);
+					low = Arrays.copyOf(low, low.length * 2);
+					high = Arrays.copyOf(high, high.length * 2);
+				}
+				low[depth+1] = i > 0 ? x.keys[i-1] : low[depth];
+				high[depth+1] = i < x.n ? x.keys[i] : high[depth];
+				path[++depth] = c;
+				x = c;
 			}
 		}
-		
-		//key does not exsist add it to the BTree
+		if (metrics != null) {
+			metrics.recordInserts(System.nanoTime() - start, keys.length);
+		}
+	}
+	
+	/**
+	 * Splits a full root. A new root is placed at the end of the file 
+	 * with the old root as its only child, the old root is split under 
+	 * it and the superblock is pointed at the new root's page.
+	 * 
+	 * @return the new root
+	 */
+	BTreeNode splitRoot() {
 		BTreeNode r = this.root;
-		if(r.n == 2*t-1) {
-			BTreeNode newNode = new BTreeNode(t, getFileLength());	
-			diskWrite(newNode);	
-			this.root.filePos = getFileLength();
-			diskWrite(root);
-			this.root = newNode;
-			newNode.isLeaf = false;
-			newNode.n = 0;
-			newNode.children[0] = r.filePos;
-			newNode.filePos = 0;
-			splitChild(newNode,0,r);
-			insertNonFull(newNode,key);
-		}else {
-			insertNonFull(root,key);
+		BTreeNode newNode = newInternalNode();
+		newNode.children[0] = r.filePos;
+		this.root = newNode;
+		splitChild(newNode,0,r);
+		height++;
+		if (metrics != null) {
+			metrics.rootSplits.increment();
+		}
+		writeSuperblock();
+		//every level moved down one, the pinned nodes are picked again
+		if (pinLevels > 0 && !concurrent) {
+			repin();
 		}
+		return newNode;
+	}
+	
+	/**
+	 * Replaces the root, used by the bulk loader once the tree is built.
+	 * 
+	 * @param node new root
+	 */
+	void setRoot(BTreeNode node) {
+		this.root = node;
+		height = 0;
+		if (pinLevels > 0) {
+			repin();
+		}
+	}
+	
+	/**
+	 * Pins the nodes of the top levels of the tree on the heap. Every 
+	 * operation goes through them, so they are kept apart from the cache 
+	 * where they would compete with the leaves for space. A pinned node 
+	 * is always returned by diskRead without a cache lookup, and changes 
+	 * to it are written when the cache is written or the tree is closed. 
+	 * The pinned levels are picked again when the root splits, nodes 
+	 * added to them by other splits are not pinned until then.
+	 * 
+	 * @param levels number of levels to pin, 1 pins only the root, 0 pins nothing
+	 */
+	public void setPinnedLevels(int levels) {
+		if (pinned != null) {
+			flushPinned();
+		}
+		pinLevels = levels;
+		if (levels <= 0) {
+			pinned = null;
+			pinnedDirty = null;
+			return;
+		}
+		repin();
+	}
+	
+	/**
+	 * Picks the nodes of the top pinLevels levels. Changed nodes that 
+	 * are no longer pinned go back through nodeWrite.
+	 */
+	private void repin() {
+		ConcurrentHashMap<Long, BTreeNode> next = new ConcurrentHashMap<Long, BTreeNode>();
+		List<BTreeNode> level = new ArrayList<BTreeNode>();
+		level.add(root);
+		for (int d = 0; d < pinLevels && !level.isEmpty(); d++) {
+			List<BTreeNode> below = new ArrayList<BTreeNode>();
+			for (BTreeNode x : level) {
+				next.put(x.filePos, x);
+				if (!x.isLeaf && d + 1 < pinLevels) {
+					for (int i = 0; i <= x.n; i++) {
+						if (x.children[i] != -1L) {
+							below.add(diskRead(x.children[i]));
+						}
+					}
+				}
+			}
+			level = below;
+		}
+		Set<Long> dirty = ConcurrentHashMap.newKeySet();
+		if (pinned != null) {
+			for (Long filePos : pinnedDirty) {
+				BTreeNode node = pinned.get(filePos);
+				if (next.get(filePos) == node) {
+					dirty.add(filePos);
+				}
+			}
+		}
+		ConcurrentHashMap<Long, BTreeNode> old = pinned;
+		Set<Long> oldDirty = pinnedDirty;
+		pinned = next;
+		pinnedDirty = dirty;
+		if (old != null) {
+			for (Long filePos : oldDirty) {
+				if (!dirty.contains(filePos)) {
+					nodeWrite(old.get(filePos));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the pinned nodes that changed.
+	 */
+	private void flushPinned() {
+		if (pinned == null) {
+			return;
+		}
+		for (Long filePos : pinnedDirty) {
+			diskWrite(pinned.get(filePos));
+		}
+		pinnedDirty.clear();
+	}
+	
+	/**
+	 * Adds a cache of raw pages under the node cache, or removes it.
+	 * 
+	 * @param bytes memory for the page cache outside of the heap, 0 for none
+	 */
+	public void setPageCache(long bytes) {
+		int pages = (int) Math.min(Integer.MAX_VALUE, bytes / store.pageSize());
+		pageCache = pages > 0 ? new PageCache(pages, store.pageSize()) : null;
 	}
 		
+	/**
+	 * Turns concurrent inserts on or off. While they are on, insertConcurrent
+	 * may be called from many threads at once. Changed nodes stay dirty in
+	 * the cache, or pinned, and are written when they are evicted, when the
+	 * cache is written or when the tree is closed. A changed node that is
+	 * evicted stays in the cache until the thread that evicted it has let go
+	 * of its own latches and written it under the node's latch, so a node
+	 * read under its latch is always the latest one. Without a cache every
+	 * changed node is written right away. The cache must be null or a
+	 * StripedCache. Nothing else may change the tree while concurrent
+	 * inserts are on.
+	 * 
+	 * @param on true to allow concurrent inserts
+	 */
+	public void setConcurrent(boolean on) {
+		if (on && cache != null && !(cache instanceof StripedCache)) {
+			throw new IllegalStateException("Concurrent inserts need a StripedCache");
+		}
+		if (on) {
+			//nothing written to the cache before this may be lost
+			if (cache != null) writeCache();
+			latches = new ConcurrentHashMap<Long, Latch>();
+		}
+		else {
+			latches = null;
+		}
+		concurrent = on;
+	}
+	
+	/**
+	 * Adds count occurrences of a key to the tree. Safe to call from many 
+	 * threads after setConcurrent(true). The insert goes down the tree 
+	 * with latch coupling: the latch of a child is taken before the latch 
+	 * of its parent is let go. Full nodes are split on the way down like 
+	 * in insert, so once a child is latched and not full nothing below it 
+	 * can change its parent and the parent's latch is released. The root 
+	 * is latched under rootLatch, which is also held while a full root 
+	 * is replaced. Latches are always taken from the top down, so threads 
+	 * can not deadlock.
+	 * 
+	 * The tree holds the same keys and counts as after the same inserts 
+	 * made one at a time, but nodes may end up in different slots of the 
+	 * file since threads allocate them in a different order.
+	 * 
+	 * @param key key to be added to the BTree
+	 * @param count number of occurrences to add
+	 */
+	public void insertConcurrent(long key, int count) {
+		long start = metrics != null ? System.nanoTime() : 0;
+		rootLatch.lock();
+		BTreeNode x = root;
+		latch(x.filePos);
+		if(x.n == 2*t-1) {
+			BTreeNode old = x;
+			x = splitRoot();
+			latch(x.filePos);
+			unlatch(old.filePos);
+		}
+		rootLatch.unlock();
+		
+		while(true) {
+			int i = x.find(key);
+			if( i >= 0 ) {
+				x.freqs[i] += count;
+				nodeWrite(x);
+				break;
+			}
+			i = -i - 1;
+			if(x.isLeaf) {
+				x.insertAt(i, key, count);
+				nodeWrite(x);
+				break;
+			}
+			long childPos = x.children[i];
+			latch(childPos);
+			BTreeNode c = diskRead(childPos);
+			if( c.n == 2*t-1 ) {
+				splitChild(x, i, c);
+				if( key == x.keys[i] ) {
+					x.freqs[i] += count;
+					nodeWrite(x);
+					unlatch(childPos);
+					break;
+				}
+				if( key > x.keys[i] ) {
+					//the new node is only reachable through x, which is still latched
+					long newPos = x.children[i+1];
+					latch(newPos);
+					unlatch(childPos);
+					childPos = newPos;
+					c = diskRead(childPos);
+				}
+			}
+			//c is not full, nothing below it will change x
+			unlatch(x.filePos);
+			x = c;
+		}
+		unlatch(x.filePos);
+		writeEvicted();
+		if (metrics != null) {
+			metrics.recordInserts(System.nanoTime() - start, 1);
+		}
+	}
+	
+	/**
+	 * Writes the changed nodes this thread evicted from the cache during a 
+	 * concurrent insert. The thread holds no other latches by now, so 
+	 * taking the latch of each node can not deadlock, and nobody changes 
+	 * a node while it is written. A node another thread already wrote is
+	 * passed over, since a newer copy may have been read and written since.
+	 */
+	private void writeEvicted() {
+		List<BTreeNode> evicted = writeBacks.get();
+		StripedCache striped = (StripedCache) cache;
+		for (BTreeNode node : evicted) {
+			latch(node.filePos);
+			try {
+				if (striped.isWriteBack(node)) {
+					diskWrite(node);
+					striped.writtenBack(node);
+				}
+			} finally {
+				unlatch(node.filePos);
+			}
+		}
+		evicted.clear();
+	}
+	
+	/**
+	 * Takes the latch of the node at a file position. The latch is made 
+	 * when the first thread asks for it.
+	 */
+	private void latch(long filePos) {
+		Latch latch = latches.compute(filePos, ADD_USER);
+		latch.lock();
+	}
+	
+	/**
+	 * Releases the latch of the node at a file position. The latch is 
+	 * dropped once no thread holds it or waits for it, so there are never 
+	 * more latches than threads in the tree.
+	 */
+	private void unlatch(long filePos) {
+		latches.get(filePos).unlock();
+		latches.computeIfPresent(filePos, REMOVE_USER);
+	}
+	
+	/**
+	 * Latch of one node with the number of threads that hold it or wait
+	 * for it. The count only changes inside the compute functions of the
+	 * latches map, which runs them one at a time for each file position.
+	 */
+	private static class Latch extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+		int users;
+	}
+	
 	/**
 	 * Inserts the key into a node. Will search the tree 
 	 * for the proper node to place it in and create new 
-	 * nodes as needed.
+	 * nodes as needed. If the key is found on the way down
+	 * its frequency is incremented instead.
 	 * 
-	 * @param x node to start search from
+	 * @param x node to start search from, must not be full
 	 * @param key key to be inserted into the BTree
+	 * @param count number of occurrences to add
 	 */
-	public void insertNonFull(BTreeNode x, long key) {
-		int i = x.n - 1;
+	public void insertNonFull(BTreeNode x, long key, int count) {
+		int i = x.find(key);
+		//key is already in this node, just count it
+		if( i >= 0 ) {
+			x.freqs[i] += count;
+			nodeWrite(x);
+			return;
+		}
+		i = -i - 1;
 		//check for leaf since keys can only be inserted in leaves.
 		if(x.isLeaf) {
-			while( i >= 0 && key < x.keys[i].key ) {
-				x.keys[i+1] = new TreeObject(x.keys[i].key, x.keys[i].freq);
-				i--;			
-			}
-			x.keys[i+1] = new TreeObject(key, 1);
-			x.n++;
+			x.insertAt(i, key, count);
 			nodeWrite(x);	
-		}else { //not a leaf, find the correct place to insert.
-			while( i >= 0 && key < x.keys[i].key) {
-				i--;
-			}
-			i++;
-			BTreeNode c;
+		}else { //not a leaf, i is the child to insert into.
 			if(x.children[i] != -1) {
-				c = diskRead(x.children[i]);
+				BTreeNode c = diskRead(x.children[i]);
 				if( c.n == 2*t-1 ) {
 					splitChild(x, i, c);
-					if( key > x.keys[i].key){
-						i++;
+					//the middle key of c moved up into x
+					if( key == x.keys[i] ) {
+						x.freqs[i] += count;
+						nodeWrite(x);
+						return;
+					}
+					if( key > x.keys[i]){
+						c = diskRead(x.children[i+1]);
 					}
 				}
-				insertNonFull(diskRead(x.children[i]), key);
+				insertNonFull(c, key, count);
 			}			
 		}
 	}
@@ -156,14 +741,12 @@ public class BTree{
 	 * @return null if not found, otherwise returns node containing key.
 	 */
 	public BTreeNode search(BTreeNode x, long key) {
-		int i = 0;
+		int i = x.find(key);
 		BTreeNode retNode = null;
-		while(i < x.n && key > x.keys[i].key) {
-			i++;
-		}
-		if(i < x.n && key == x.keys[i].key) {
+		if(i >= 0) {
 			return x;
 		}
+		i = -i - 1;
 		if(x.isLeaf) {
 			return null;
 		}
@@ -173,6 +756,50 @@ public class BTree{
 		return search(retNode,key);
 	}
 	
+	/**
+	 * Looks up many keys with one walk down the tree. The keys must be
+	 * sorted in ascending order. Each node splits the keys it does not 
+	 * hold between its children, so every node is read at most once 
+	 * for the whole batch instead of once per key.
+	 * 
+	 * @param sortedKeys keys to look up, sorted ascending
+	 * @return frequency of each key in the same order, 0 if a key is not in the tree
+	 */
+	public int[] lookupAll(long[] sortedKeys) {
+		int[] counts = new int[sortedKeys.length];
+		if (sortedKeys.length > 0) {
+			lookupAll(root, sortedKeys, 0, sortedKeys.length, counts);
+		}
+		return counts;
+	}
+	
+	/**
+	 * Looks up the keys from index from up to, not including, to in 
+	 * the subtree rooted at x.
+	 */
+	private void lookupAll(BTreeNode x, long[] keys, int from, int to, int[] counts) {
+		int i = 0;
+		int j = from;
+		while(j < to) {
+			while(i < x.n && x.keys[i] < keys[j]) {
+				i++;
+			}
+			if(i < x.n && x.keys[i] == keys[j]) {
+				counts[j++] = x.freqs[i];
+				continue;
+			}
+			//every key below keys[i] belongs to child i
+			int end = j;
+			while(end < to && (i == x.n || keys[end] < x.keys[i])) {
+				end++;
+			}
+			if(!x.isLeaf && x.children[i] != -1) {
+				lookupAll(diskRead(x.children[i]), keys, j, end, counts);
+			}
+			j = end;
+		}
+	}
+	
 	/**
 	 * Splits a full node into two seperate nodes and modifies
 	 * the parent to point to the two new nodes. 
@@ -185,63 +812,71 @@ public class BTree{
 		//x is the parent to y
 		//y is the node being split 
 		//z is the new node which ~half of y's keys/children will go to
-		BTreeNode z = new BTreeNode(t, getFileLength());
+		BTreeNode z = new BTreeNode(t, allocateNode());
 		z.isLeaf = y.isLeaf;
 		z.n = t-1;
 		diskWrite(z);
 		
 		//copy keys from y to z
-		for(int j=0; j<t-1; j++) {
-			//need to create new TreeObjects to avoid passing by reference 
-			z.keys[j] = new TreeObject(y.keys[j+t].key, y.keys[j+t].freq);
-			y.keys[j+t] = new TreeObject();
-		}
+		System.arraycopy(y.keys, t, z.keys, 0, t-1);
+		System.arraycopy(y.freqs, t, z.freqs, 0, t-1);
 		if(!y.isLeaf) {
-			for(int j=0; j<t; j++) {
-				z.children[j] = y.children[j+t];
-				y.children[j+t] = -1L;
-			}
+			System.arraycopy(y.children, t, z.children, 0, t);
+			Arrays.fill(y.children, t, 2*t, -1L);
 		}
+		long midKey = y.keys[t-1];
+		int midFreq = y.freqs[t-1];
+		y.clearKeys(t-1, 2*t-1);
+		y.n = t-1;
 		
 		//move children to correct location
-		y.n = t-1;
-		for(int j=x.n; j>i; j--) {
-			x.children[j+1] = x.children[j];
-			x.children[j] = -1L;
-		}
+		System.arraycopy(x.children, i+1, x.children, i+2, x.n-i);
 		x.children[i+1] = z.filePos;
-		for(int j=x.n-1; j>i-1; j--) {
-			x.keys[j+1] = new TreeObject(x.keys[j].key, x.keys[j].freq);
-		}
-		x.keys[i] = new TreeObject(y.keys[t-1].key, y.keys[t-1].freq);
-		y.keys[t-1] = new TreeObject();
-		x.n = x.n + 1;
+		x.insertAt(i, midKey, midFreq);
 		//write changes to nodes
 		nodeWrite(z);		
 		nodeWrite(y);		
 		nodeWrite(x);
+		if (metrics != null) {
+			metrics.splits.increment();
+		}
+	}
+	
+	/**
+	 * Makes an empty internal node at a new file position.
+	 * 
+	 * @return the new node
+	 */
+	BTreeNode newInternalNode() {
+		BTreeNode node = new BTreeNode(t, allocateNode());
+		node.isLeaf = false;
+		return node;
 	}
 	
 	/**
 	 * Converts a gene sequence into a numerica reresentation. This 
-	 * allows for easy storage of sequences in a small space.
+	 * allows for easy storage of sequences in a small space. The first
+	 * base goes in the lowest 2 bits, or in the highest 2 bits when the 
+	 * tree keeps its keys in lexicographic order.
 	 * 
 	 * @param s String to be converted
 	 * @return numeric representation of String
 	 */
 	public long sequenceToLong(String s) {
 		if( s.length() > 31 ) throw new InvalidParameterException("stringToLong() string param must be 31 chars long !");
-		Long retVal = 0L;
+		boolean lex = isLexOrder();
+		long retVal = 0L;
 		for( int i=0; i<s.length(); i++ ) {
-			int cur = 0;
-			switch( s.substring(i, i+1) ){
-				case "A": cur = 0; break;
-				case "C": cur = 1; break;
-				case "T": cur = 3; break;
-				case "G": cur = 2; break;
+			long cur = 0;
+			switch( s.charAt(i) ){
+				case 'A': cur = 0; break;
+				case 'C': cur = 1; break;
+				case 'T': cur = 3; break;
+				case 'G': cur = 2; break;
 			};
-			if(i==0) retVal += cur;
-			else retVal += cur * (long)Math.pow(4,i);
+			if(lex) retVal = (retVal << 2) | cur;
+			//base i goes in bits 2i and 2i+1
+			else retVal |= cur << (2*i);
 		}
 		return retVal;
 	}
@@ -255,19 +890,210 @@ public class BTree{
 	 * @return String version of the subsequence
 	 */
 	public String longToSequence(long key, int subsequenceLength) {
-		String retString = "";
+		boolean lex = isLexOrder();
+		char[] retString = new char[subsequenceLength];
 		for(int i=0; i < subsequenceLength; i++){
-			String cur = "";
-			switch((int)(key % 4)) {
-				case 1: cur = "C"; break;
-				case 2: cur = "G"; break;
-				case 3: cur = "T"; break;
-				case 0: cur = "A"; break;
-			}
-			retString += cur;
+			retString[lex ? subsequenceLength - 1 - i : i] = BASES[(int)(key & 3)];
 			key = key >> 2;
 		}
-		return retString;
+		return new String(retString);
+	}
+	
+	/**
+	 * Gets the key of the reverse complement of a subsequence, the 
+	 * subsequence read backwards on the other strand. The base codes are 
+	 * chosen so the complement of a base is its code xor 3, and in both 
+	 * key orders reading the bases backwards reverses the order of the 
+	 * 2 bit groups, so the key is complemented and its groups reversed.
+	 * 
+	 * @param key subsequence of the tree's sequence length
+	 * @return key of its reverse complement
+	 */
+	public long reverseComplement(long key) {
+		long x = Long.reverse(~key);
+		//Long.reverse also swapped the two bits of each base, swap them back
+		x = ((x >>> 1) & 0x5555555555555555L) | ((x & 0x5555555555555555L) << 1);
+		return x >>> (64 - 2*seqLength);
+	}
+	
+	/**
+	 * Gets the key a subsequence is stored under. In a canonical tree that 
+	 * is the smaller of its key and the key of its reverse complement, 
+	 * otherwise it is the key itself.
+	 * 
+	 * @param key subsequence of the tree's sequence length
+	 * @return key to look up or insert
+	 */
+	public long canonicalKey(long key) {
+		if (!isCanonical()) {
+			return key;
+		}
+		return Math.min(key, reverseComplement(key));
+	}
+	
+	/**
+	 * Gets the range of keys that start with the given bases. Only
+	 * trees in lexicographic order keep these keys next to each other.
+	 * 
+	 * @param prefix first bases of the subsequences, at most the sequence length
+	 * @return lowest key with the prefix and the key just past the last one
+	 */
+	public long[] prefixRange(String prefix) {
+		if(!isLexOrder()) throw new IllegalStateException("prefix ranges need a tree in lexicographic order");
+		if(prefix.length() > seqLength) throw new InvalidParameterException("prefix is longer than the sequence length");
+		int shift = 2 * (seqLength - prefix.length());
+		long p = sequenceToLong(prefix);
+		return new long[] {p << shift, (p + 1) << shift};
+	}
+	
+	/**
+	 * Finds the n most frequent keys without listing the whole tree. Every 
+	 * node is read once and its keys are offered to a min-heap that holds 
+	 * at most n keys, so the least frequent of the best keys so far is 
+	 * always on top and is the one replaced. Keys with the same frequency 
+	 * are ranked by key, the smaller key first.
+	 * 
+	 * @param n number of keys to find
+	 * @return up to n keys with their frequencies, the most frequent first
+	 */
+	public List<TreeObject> topN(int n) {
+		return topN(n, null);
+	}
+	
+	/**
+	 * Finds the n most frequent keys. With a summary the children of a 
+	 * node are visited from the highest frequency under them down, and a 
+	 * child is skipped once the heap is full and nothing under it can beat 
+	 * the least frequent key in the heap.
+	 * 
+	 * @param n number of keys to find
+	 * @param summary highest frequency under each node, null to read every node
+	 * @return up to n keys with their frequencies, the most frequent first
+	 */
+	public List<TreeObject> topN(int n, FrequencySummary summary) {
+		return topN(n, summary, null);
+	}
+	
+	/**
+	 * Finds the n most frequent keys, reading the next children of each 
+	 * node ahead in the background while the current one is worked on.
+	 * 
+	 * @param n number of keys to find
+	 * @param summary highest frequency under each node, null to read every node
+	 * @param prefetcher reads nodes ahead, null to read each node when it is reached
+	 * @return up to n keys with their frequencies, the most frequent first
+	 */
+	public List<TreeObject> topN(int n, FrequencySummary summary, NodePrefetcher prefetcher) {
+		PriorityQueue<TreeObject> heap = new PriorityQueue<TreeObject>(Math.max(1, n), TOP_ORDER);
+		if (n > 0) {
+			topN(root, n, heap, summary, prefetcher);
+		}
+		List<TreeObject> top = new ArrayList<TreeObject>(heap);
+		Collections.sort(top, Collections.reverseOrder(TOP_ORDER));
+		return top;
+	}
+	
+	/**
+	 * Offers the keys of the subtree rooted at x to the heap.
+	 */
+	private void topN(BTreeNode x, int n, PriorityQueue<TreeObject> heap, FrequencySummary summary, NodePrefetcher prefetcher) {
+		//B+ tree separators are copies with no count
+		for (int i = 0; x.freqs != null && i < x.n; i++) {
+			if (x.freqs[i] <= 0) continue;
+			if (heap.size() == n) {
+				TreeObject worst = heap.peek();
+				if (x.freqs[i] < worst.freq || (x.freqs[i] == worst.freq && x.keys[i] > worst.key)) continue;
+				heap.poll();
+			}
+			heap.add(new TreeObject(x.keys[i], x.freqs[i]));
+		}
+		if (x.isLeaf) {
+			return;
+		}
+		Long[] children = new Long[x.n + 1];
+		for (int i = 0; i <= x.n; i++) {
+			children[i] = x.children[i];
+		}
+		if (summary != null) {
+			final FrequencySummary sum = summary;
+			Arrays.sort(children, new Comparator<Long>() {
+				public int compare(Long a, Long b) {
+					return Integer.compare(sum.max(b), sum.max(a));
+				}
+			});
+		}
+		for (int c = 0; c < children.length; c++) {
+			long child = children[c];
+			if (child == -1L) continue;
+			if (canSkip(child, n, heap, summary)) {
+				//the children are sorted by the highest frequency under them, so none of the rest can beat the heap
+				//either, and the reads started for them are dropped
+				for (int ahead = c; prefetcher != null && ahead <= Math.min(children.length - 1, c + prefetcher.window()); ahead++) {
+					prefetcher.cancel(children[ahead]);
+				}
+				break;
+			}
+			if (prefetcher != null) {
+				//start the whole window at the first child, then one more child each step
+				int from = c == 0 ? 0 : c + prefetcher.window();
+				for (int ahead = from; ahead <= Math.min(children.length - 1, c + prefetcher.window()); ahead++) {
+					if (!canSkip(children[ahead], n, heap, summary)) prefetcher.prefetch(children[ahead]);
+				}
+			}
+			topN(prefetcher == null ? diskRead(child) : prefetcher.take(child), n, heap, summary, prefetcher);
+		}
+	}
+	
+	/**
+	 * Checks if nothing under a child can beat the worst key kept.
+	 */
+	private boolean canSkip(long child, int n, PriorityQueue<TreeObject> heap, FrequencySummary summary) {
+		return summary != null && heap.size() == n && summary.max(child) < heap.peek().freq;
+	}
+	
+	/**
+	 * Opens a cursor positioned just before the first key that is 
+	 * greater than or equal to the lower bound.
+	 * 
+	 * @param lowerBound smallest key the cursor should return
+	 * @return cursor over the keys in ascending order
+	 */
+	public BTreeCursor cursor(long lowerBound) {
+		BTreeCursor cursor = new BTreeCursor(this);
+		cursor.seek(lowerBound);
+		return cursor;
+	}
+	
+	/**
+	 * Opens a cursor that reads the upcoming nodes ahead in the background.
+	 * 
+	 * @param lowerBound smallest key the cursor should return
+	 * @param prefetcher reads nodes ahead, null for a plain cursor
+	 * @return cursor over the keys in ascending order
+	 */
+	public BTreeCursor cursor(long lowerBound, NodePrefetcher prefetcher) {
+		if (prefetcher == null) {
+			return cursor(lowerBound);
+		}
+		BTreeCursor cursor = new BTreeCursor(this, prefetcher);
+		cursor.seek(lowerBound);
+		return cursor;
+	}
+	
+	/**
+	 * Prints every key in order with its frequency, the same way as print,
+	 * but through a cursor that reads nodes ahead so the reads overlap 
+	 * with the printing.
+	 * 
+	 * @param prefetcher reads nodes ahead
+	 */
+	public void print(NodePrefetcher prefetcher) {
+		BTreeCursor cursor = cursor(0L, prefetcher);
+		while (cursor.next()) {
+			System.out.print(cursor.freq() + " ");
+			System.out.print(longToSequence(cursor.key(), seqLength));
+			System.out.println();
+		}
 	}
 	
 	/**
@@ -276,10 +1102,27 @@ public class BTree{
 	 * @param node node to write to cache/disk
 	 */
 	public void nodeWrite(BTreeNode node) {
+		if (pinned != null && pinned.get(node.filePos) == node) {
+			//pinned nodes stay on the heap, they are written when the tree is saved
+			pinnedDirty.add(node.filePos);
+			return;
+		}
+		if (concurrent) {
+			if (cache == null) {
+				diskWrite(node);
+				return;
+			}
+			//the node stays dirty in the cache, a changed node it evicts is written after the insert
+			BTreeNode evicted = ((StripedCache) cache).addObjectWriteBack(node, true);
+			if (evicted != null) {
+				writeBacks.get().add(evicted);
+			}
+			return;
+		}
 		if (cache != null) {
-			//add node to the cache, if the cache is full addObject will return the
-			//last element in the cache. When the last element is returned, write it to disk
-			//so that its data is updated appropriately
+			//add node to the cache as dirty, if the cache is full addObject will return the
+			//least recently used node when it was changed. When a node is returned, write it
+			//to disk so that its data is updated appropriately
 			BTreeNode checkNode = cache.addObject(node);
 			if (checkNode != null) {
 				diskWrite(checkNode);
@@ -298,19 +1141,19 @@ public class BTree{
 	 */
 	public void diskWrite(BTreeNode node) {
 		try {
-			btreeRAF = new RandomAccessFile(BtreeFile, "rw");
-			btreeRAF.seek(node.filePos);
-			for (int i = 0; i < node.keys.length; i++) {
-				btreeRAF.writeLong(node.keys[i].key);
-				btreeRAF.writeInt(node.keys[i].freq);
-			}
-			for (int i = 0; i < node.children.length; i++) {
-				btreeRAF.writeLong(node.children[i]);
-			}
-			btreeRAF.writeInt(node.n);
-			btreeRAF.writeBoolean(node.isLeaf);
-			btreeRAF.writeLong(node.filePos);
-			btreeRAF.close();
+			ByteBuffer page = store.buffer();
+			encode(node, page);
+			//write the whole slot so the file always covers every page
+			page.position(page.limit());
+			page.flip();
+			if (pageCache != null) {
+				pageCache.put(node.filePos, page);
+			}
+			if (metrics != null) {
+				metrics.nodeWrites.increment();
+				metrics.bytesWritten.add(page.remaining());
+			}
+			store.write(node.filePos, page);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -325,38 +1168,125 @@ public class BTree{
 	 * @return node at requested file position
 	 */
 	public BTreeNode diskRead(long filePos) {		
+		BTreeNode node = resident(filePos);
+		if (node != null) {
+			if (metrics != null) metrics.cacheHits.increment();
+			return node;
+		}
+		if (metrics != null) metrics.cacheMisses.increment();
+		node = readNode(filePos);
+		keep(node);
+		return node;
+	}
+	
+	/**
+	 * Gets a node if it is pinned or in the cache.
+	 * 
+	 * @param filePos location of BTreeNode on disk
+	 * @return the node, null if it has to be read
+	 */
+	BTreeNode resident(long filePos) {
+		if (pinned != null) {
+			BTreeNode pin = pinned.get(filePos);
+			if (pin != null) {
+				return pin;
+			}
+		}
 		//search the cache for the node with the given filePos
 		//if it is found in the cache, return it instead of reading from disk
-		BTreeNode checkCache = null;
 		if (cache != null) {
-			checkCache = cache.getObject(filePos);
+			return cache.getObject(filePos);
 		}
-		if (checkCache != null)
-		{
-			return checkCache;
-		}
-		
-		BTreeNode node = new BTreeNode(t,filePos);
+		return null;
+	}
+	
+	/**
+	 * Reads and decodes a node from the page cache or the file, without 
+	 * looking in the cache or adding to it. Safe to call from any thread, 
+	 * so nodes can be read ahead in the background.
+	 * 
+	 * @param filePos location of BTreeNode on disk
+	 * @return node at requested file position
+	 */
+	BTreeNode readNode(long filePos) {
 		try {
-			btreeRAF = new RandomAccessFile(BtreeFile, "r");
-			btreeRAF.seek(filePos);
-			for (int i = 0; i < node.keys.length; i++) {
-				node.keys[i].key = btreeRAF.readLong();
-				node.keys[i].freq = btreeRAF.readInt();
-			}
-			for (int i = 0; i < node.children.length; i++) {
-				node.children[i] = btreeRAF.readLong();
-			}
-			node.n = btreeRAF.readInt();
-			node.isLeaf = btreeRAF.readBoolean();
-			node.filePos = btreeRAF.readLong();
-			btreeRAF.close();
+			//the raw page cache first, then the file
+			ByteBuffer page = store.buffer();
+			if (pageCache == null || !pageCache.get(filePos, page)) {
+				page = store.read(filePos);
+				if (metrics != null) {
+					metrics.nodeReads.increment();
+					metrics.bytesRead.add(page.remaining());
+				}
+				if (pageCache != null) {
+					pageCache.put(filePos, page);
+				}
+			}
+			else if (metrics != null) {
+				metrics.pageCacheHits.increment();
+			}
+			return decode(page, filePos);
 		} catch (IOException e) {
 			e.printStackTrace();
-		}		
+		}
+		return new BTreeNode(t,filePos);
+	}
+	
+	/**
+	 * Writes a node to a page buffer in the layout of this tree.
+	 * 
+	 * @param node node to write
+	 * @param page buffer to write to
+	 */
+	void encode(BTreeNode node, ByteBuffer page) {
+		if (isCompressed()) {
+			node.writePacked(page, store.pageSize());
+		}
+		else {
+			node.writeTo(page);
+		}
+	}
+	
+	/**
+	 * Makes a node from a page buffer written by encode.
+	 * 
+	 * @param page buffer to read from
+	 * @param filePos location of the page in the file
+	 * @return the node
+	 */
+	BTreeNode decode(ByteBuffer page, long filePos) {
+		BTreeNode node = new BTreeNode(t,filePos);
+		if (isCompressed()) {
+			node.readPacked(page, store.pageSize(), filePos);
+		}
+		else {
+			node.readFrom(page);
+		}
 		return node;
 	}
 	
+	/**
+	 * Adds a node that was just read to the cache.
+	 * 
+	 * @param node node read from disk
+	 */
+	void keep(BTreeNode node) {
+		if (cache != null) {
+			//keep the node in the cache as clean so it is not written back unless it changes
+			if (concurrent) {
+				BTreeNode evicted = ((StripedCache) cache).addObjectWriteBack(node, false);
+				if (evicted != null) {
+					writeBacks.get().add(evicted);
+				}
+				return;
+			}
+			BTreeNode checkNode = cache.addObject(node, false);
+			if (checkNode != null) {
+				diskWrite(checkNode);
+			}
+		}
+	}
+	
 	/**
 	 * In-order traversal of the btree nodes.
 	 * Print all keys of the node on each traverse step.
@@ -373,10 +1303,9 @@ public class BTree{
 					print(n, debug);
 				}
 			}
-			TreeObject cur = root_node.keys[i];
-			if(cur.key != -1) {
-				System.out.print(cur.freq + " ");
-				System.out.print(longToSequence(cur.key, seqLength));
+			if(root_node.keys[i] != -1) {
+				System.out.print(root_node.freqs[i] + " ");
+				System.out.print(longToSequence(root_node.keys[i], seqLength));
 				System.out.println();
 			}
 		}
@@ -390,31 +1319,204 @@ public class BTree{
 	}
 	
 	/**
-	 * Gets the current length of the BTree file. This is
-	 * needed when new nodes are added to insure they are written
-	 * to end of file.
+	 * Reserves space for a new node at the end of the BTree file.
+	 * The page store keeps track of the end of the file so this
+	 * does not need to touch the disk.
 	 * 
-	 * @return current file length
+	 * @return file position for the new node
 	 */
-	private long getFileLength() {
-		long fileLength = -1L;
+	long allocateNode() {
+		return store.allocate();
+	}
+	
+	/**
+	 * Number of bytes one node takes up in the BTree file.
+	 * Each node has (2*t-1)*(8+4) + (2*t)*8 + 4 + 1 + 8 bytes.
+	 * 
+	 * @param t degree of the tree
+	 * @return size of a node on disk
+	 */
+	static int nodeSize(int t) {
+		return (2*t-1)*(8+4) + (2*t)*8 + 4 + 1 + 8;
+	}
+	
+	/**
+	 * Number of bytes one node takes up in the BTree file for a
+	 * tree with the given format flags.
+	 * 
+	 * @param t degree of the tree
+	 * @param k subsequence length
+	 * @param flags format flags, COMPRESSED uses the compressed node layout
+	 * and BPLUS gives the size of a B+ tree leaf
+	 * @return size of a node on disk
+	 */
+	static int nodeSize(int t, int k, int flags) {
+		if ((flags & BPLUS) != 0) {
+			return (flags & COMPRESSED) != 0 ? BTreeNode.packedLeafSize(t, k) : BTreeNode.leafSize(t);
+		}
+		if ((flags & COMPRESSED) != 0) {
+			return BTreeNode.packedSize(t, k);
+		}
+		return nodeSize(t);
+	}
+	
+	/**
+	 * Finds the largest degree whose nodes fit in a block.
+	 * 
+	 * @param blockSize number of bytes a node may use
+	 * @param k subsequence length
+	 * @param flags format flags of the tree
+	 * @return largest degree t with nodeSize(t, k, flags) <= blockSize, at least 2
+	 */
+	public static int degreeFor(int blockSize, int k, int flags) {
+		int t = 2;
+		while (nodeSize(t + 1, k, flags) <= blockSize) {
+			t++;
+		}
+		return t;
+	}
+	
+	/**
+	 * Writes the cache to disk to save all node changes. Only nodes
+	 * that changed are written, in file order.
+	 */
+	public void writeCache() {
+		flushPinned();
+		if (cache == null) {
+			return;
+		}
+		for (BTreeNode node : cache.getDirty()) {
+			diskWrite(node);
+		}
+	}
+	
+	/**
+	 * Gets the degree of the tree.
+	 * 
+	 * @return degree t
+	 */
+	public int getDegree() {
+		return t;
+	}
+	
+	/**
+	 * Gets the length of the subsequences stored in the tree.
+	 * 
+	 * @return sequence length k
+	 */
+	public int getSequenceLength() {
+		return seqLength;
+	}
+	
+	/**
+	 * Gets the format flags of the tree.
+	 * 
+	 * @return flags such as LEX_ORDER
+	 */
+	public int getFlags() {
+		return flags;
+	}
+	
+	/**
+	 * Checks if the first base of a subsequence is stored in the highest
+	 * bits of its key, which puts keys in the same order as their Strings.
+	 * 
+	 * @return true for lexicographic key order
+	 */
+	public boolean isLexOrder() {
+		return (flags & LEX_ORDER) != 0;
+	}
+	
+	/**
+	 * Checks if a subsequence and its reverse complement are stored as
+	 * one key.
+	 * 
+	 * @return true for canonical keys
+	 */
+	public boolean isCanonical() {
+		return (flags & CANONICAL) != 0;
+	}
+	
+	/**
+	 * Checks if the nodes are written in the compressed layout.
+	 * 
+	 * @return true for compressed nodes
+	 */
+	public boolean isCompressed() {
+		return (flags & COMPRESSED) != 0;
+	}
+	
+	/**
+	 * Writes the root page and the number of nodes to the superblock.
+	 */
+	void writeSuperblock() {
 		try {
-			btreeRAF = new RandomAccessFile(BtreeFile, "r");
-			fileLength = btreeRAF.length();
-			btreeRAF.close();
+			superblock.rootPage = root.filePos / superblock.slotSize;
+			superblock.nodeCount = store.length() / superblock.slotSize - 1;
+			superblock.write(store);
 		} catch (IOException e) {
-			System.out.println("Error accessing file");
 			e.printStackTrace();
-		}	
-		return fileLength;
+		}
+	}
+	
+	/**
+	 * Starts counting what the tree does, or stops when metrics is null.
+	 * 
+	 * @param metrics counters to add to, null to count nothing
+	 */
+	public void setMetrics(BTreeMetrics metrics) {
+		if (metrics != null) {
+			//work out the height before anything is counted
+			getHeight();
+			metrics.attach(this);
+		}
+		this.metrics = metrics;
 	}
 	
 	/**
-	 * Writes the cache to disk to save all node changes.
+	 * Gets the number of levels in the tree. It is worked out by going
+	 * down the leftmost path the first time, and kept up to date as the
+	 * root splits after that.
+	 * 
+	 * @return height of the tree, 1 for a tree that is only a root
 	 */
-	public void writeCache() {
-		for (int i = cache.cacheSize(); i > 0; i--) {
-			diskWrite(cache.getLast());
+	public int getHeight() {
+		if (height == 0) {
+			int levels = 1;
+			BTreeNode x = root;
+			while (!x.isLeaf && x.children[0] != -1L) {
+				x = diskRead(x.children[0]);
+				levels++;
+			}
+			height = levels;
+		}
+		return height;
+	}
+	
+	/**
+	 * Gets the number of nodes in the BTree file.
+	 * 
+	 * @return number of node pages
+	 */
+	public long getNodeCount() {
+		if (superblock == null) {
+			return store.length() / store.pageSize();
+		}
+		return store.length() / superblock.slotSize - 1;
+	}
+	
+	/**
+	 * Closes the BTree file. The cache should be written 
+	 * before closing so no node changes are lost. A tree 
+	 * that was written to gets its superblock updated first.
+	 * 
+	 * @throws IOException if the file can not be closed
+	 */
+	public void close() throws IOException {
+		if (!readOnly) {
+			flushPinned();
+			writeSuperblock();
 		}
+		store.close();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,382 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a BTree from scratch out of a stream of keys instead of inserting
+ * them one at a time. Keys are collected in a fixed size buffer, each full
+ * buffer is sorted and spilled to a temporary run file with duplicates
+ * collapsed into counts, and the runs are merged at most MERGE_FAN_IN at a
+ * time, in as many passes as it takes. The merged keys are then
+ * written bottom up into packed nodes in one sequential pass over the BTree
+ * file. The result uses the same node layout as a tree built through insert,
+ * with the root in the slot of the empty root the tree was created with.
+ *
+ * @author Ben Mcavoy
+ */
+public class BTreeBulkLoader {
+
+	/** default number of keys held in memory before a run is spilled */
+	public static final int DEFAULT_RUN_SIZE = 1 << 22;
+	/** most runs open at once while merging */
+	public static final int MERGE_FAN_IN = 64;
+
+	private BTree bt;
+	private int t;
+	private long[] buffer;
+	private int buffered;
+	private List<File> runs;
+
+	//sorted, collapsed keys of the last run when it never had to be spilled
+	private long[] lastKeys;
+	private int[] lastCounts;
+	private int lastSize;
+
+	//bottom up build state, one entry per level of the tree
+	private long[] levelKeys;
+	private int[] levelNodes;
+	private BTreeNode[] current;
+	private int[] currentIndex;
+	private int[] childCount;
+	private boolean separatorPending;
+
+	/**
+	 * Creates a loader for an empty tree.
+	 *
+	 * @param bt newly created BTree that will receive the keys
+	 * @param runSize number of keys sorted in memory at a time
+	 */
+	public BTreeBulkLoader(BTree bt, int runSize) {
+		this.bt = bt;
+		this.t = bt.getDegree();
+		this.buffer = new long[Math.max(runSize, 1)];
+		this.runs = new ArrayList<File>();
+	}
+
+	/**
+	 * Adds one occurrence of a key.
+	 *
+	 * @param key key to add to the tree
+	 * @throws IOException if a run can not be spilled to disk
+	 */
+	public void add(long key) throws IOException {
+		if (buffered == buffer.length) {
+			spill();
+		}
+		buffer[buffered++] = key;
+	}
+
+	/**
+	 * Merges everything that was added and writes the tree.
+	 *
+	 * @throws IOException if the runs or the BTree file can not be accessed
+	 */
+	public void finish() throws IOException {
+		sortBuffer();
+		if (runs.isEmpty()) {
+			//everything fit in memory, build straight from the buffer
+			startBuild(lastSize);
+			for (int i = 0; i < lastSize; i++) {
+				add(lastKeys[i], lastCounts[i]);
+			}
+		}
+		else {
+			if (lastSize > 0) {
+				writeRun(lastKeys, lastCounts, lastSize);
+			}
+			buffer = null;
+			lastKeys = null;
+			lastCounts = null;
+			File merged = File.createTempFile("btree", ".merged");
+			merged.deleteOnExit();
+			long distinct = merge(merged);
+			startBuild(distinct);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(merged), 1 << 16));
+			for (long i = 0; i < distinct; i++) {
+				add(in.readLong(), in.readInt());
+			}
+			in.close();
+			merged.delete();
+		}
+		finishBuild();
+	}
+
+	/**
+	 * Sorts the buffer and collapses repeated keys into counts.
+	 */
+	private void sortBuffer() {
+		Arrays.sort(buffer, 0, buffered);
+		lastKeys = new long[buffered];
+		lastCounts = new int[buffered];
+		lastSize = 0;
+		for (int i = 0; i < buffered; i++) {
+			if (lastSize > 0 && lastKeys[lastSize - 1] == buffer[i]) {
+				lastCounts[lastSize - 1]++;
+			}
+			else {
+				lastKeys[lastSize] = buffer[i];
+				lastCounts[lastSize] = 1;
+				lastSize++;
+			}
+		}
+		buffered = 0;
+	}
+
+	/**
+	 * Sorts the full buffer and writes it out as a run.
+	 *
+	 * @throws IOException if the run file can not be written
+	 */
+	private void spill() throws IOException {
+		sortBuffer();
+		writeRun(lastKeys, lastCounts, lastSize);
+		lastKeys = null;
+		lastCounts = null;
+		lastSize = 0;
+	}
+
+	/**
+	 * Writes sorted keys and their counts to a new temporary run file.
+	 */
+	private void writeRun(long[] keys, int[] counts, int size) throws IOException {
+		File run = File.createTempFile("btree", ".run");
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		for (int i = 0; i < size; i++) {
+			out.writeLong(keys[i]);
+			out.writeInt(counts[i]);
+		}
+		out.close();
+		runs.add(run);
+	}
+
+	/**
+	 * Merges all runs into one sorted file of distinct keys. While there
+	 * are more runs than MERGE_FAN_IN, each group of MERGE_FAN_IN runs is
+	 * merged into one longer run first, so the open files and the memory
+	 * for their buffers stay the same however many runs were spilled.
+	 *
+	 * @param merged file to write the merged keys and counts to
+	 * @return number of distinct keys
+	 */
+	private long merge(File merged) throws IOException {
+		while (runs.size() > MERGE_FAN_IN) {
+			List<File> longer = new ArrayList<File>();
+			for (int from = 0; from < runs.size(); from += MERGE_FAN_IN) {
+				File run = File.createTempFile("btree", ".run");
+				run.deleteOnExit();
+				merge(runs.subList(from, Math.min(runs.size(), from + MERGE_FAN_IN)), run);
+				longer.add(run);
+			}
+			runs = longer;
+		}
+		long distinct = merge(runs, merged);
+		runs.clear();
+		return distinct;
+	}
+
+	/**
+	 * Merges a group of runs into one file, adding up the counts of a key
+	 * found in several of them, and deletes the runs.
+	 *
+	 * @param group run files to merge, at most MERGE_FAN_IN
+	 * @param merged file to write the merged keys and counts to
+	 * @return number of distinct keys
+	 */
+	private long merge(List<File> group, File merged) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		for (File file : group) {
+			Run run = new Run(file);
+			if (run.next()) {
+				queue.add(run);
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1 << 16));
+		long distinct = 0;
+		while (!queue.isEmpty()) {
+			Run run = queue.poll();
+			long key = run.key;
+			int count = run.count;
+			if (run.next()) queue.add(run);
+			while (!queue.isEmpty() && queue.peek().key == key) {
+				Run same = queue.poll();
+				count += same.count;
+				if (same.next()) queue.add(same);
+			}
+			out.writeLong(key);
+			out.writeInt(count);
+			distinct++;
+		}
+		out.close();
+		for (File file : group) {
+			file.delete();
+		}
+		return distinct;
+	}
+
+	/**
+	 * Works out how many nodes each level gets for the given number of
+	 * keys. Every level packs its nodes as full as possible and spreads
+	 * the keys evenly so no node ends up with fewer than t-1 keys. The
+	 * keys left between nodes of one level become the keys of the level
+	 * above it.
+	 *
+	 * @param distinct number of distinct keys going into the tree
+	 */
+	private void startBuild(long distinct) {
+		List<long[]> levels = new ArrayList<long[]>();
+		long keys = distinct;
+		while (true) {
+			long nodes = keys <= 2*t-1 ? 1 : (keys + 1 + 2*t - 1) / (2*t);
+			levels.add(new long[] {keys, nodes});
+			if (nodes == 1) break;
+			keys = nodes - 1;
+		}
+		int height = levels.size();
+		levelKeys = new long[height];
+		levelNodes = new int[height];
+		for (int h = 0; h < height; h++) {
+			levelKeys[h] = levels.get(h)[0];
+			levelNodes[h] = (int) levels.get(h)[1];
+		}
+		current = new BTreeNode[height];
+		currentIndex = new int[height];
+		childCount = new int[height];
+		separatorPending = false;
+	}
+
+	/**
+	 * Number of keys planned for the node currently being filled on a level.
+	 */
+	private int plannedKeys(int h) {
+		long nodeKeys = levelKeys[h] - (levelNodes[h] - 1);
+		long base = nodeKeys / levelNodes[h];
+		long extra = nodeKeys % levelNodes[h];
+		return (int) (currentIndex[h] < extra ? base + 1 : base);
+	}
+
+	/**
+	 * Gets the node being filled on a level, starting a new one if needed.
+	 */
+	private BTreeNode current(int h) {
+		if (current[h] == null) {
+			current[h] = new BTreeNode(t, -1L);
+			current[h].isLeaf = (h == 0);
+			childCount[h] = 0;
+		}
+		return current[h];
+	}
+
+	/**
+	 * Places the next key in sorted order. Keys go into the current leaf
+	 * until it has its planned size, the key after a full leaf is the
+	 * separator that belongs to the level above.
+	 */
+	private void add(long key, int count) throws IOException {
+		if (separatorPending) {
+			separatorPending = false;
+			placeSeparator(1, key, count);
+			return;
+		}
+		BTreeNode leaf = current(0);
+		leaf.keys[leaf.n] = key;
+		leaf.freqs[leaf.n++] = count;
+		if (leaf.n == plannedKeys(0)) {
+			complete(0);
+			separatorPending = true;
+		}
+	}
+
+	/**
+	 * Adds a separator key to a level. If the node on that level already
+	 * has all of its keys it is finished and the key moves up a level.
+	 */
+	private void placeSeparator(int h, long key, int count) throws IOException {
+		BTreeNode node = current(h);
+		if (node.n < plannedKeys(h)) {
+			node.keys[node.n] = key;
+			node.freqs[node.n++] = count;
+		}
+		else {
+			complete(h);
+			placeSeparator(h + 1, key, count);
+		}
+	}
+
+	/**
+	 * Writes the finished node of a level and hooks it up to its parent.
+	 * The root takes the slot of the empty root the tree was created with,
+	 * every other node goes to the end of the file.
+	 */
+	private void complete(int h) {
+		BTreeNode node = current[h];
+		boolean isRoot = (h == levelNodes.length - 1);
+		node.filePos = isRoot ? bt.root.filePos : bt.allocateNode();
+		bt.diskWrite(node);
+		if (isRoot) {
+			bt.setRoot(node);
+		}
+		else {
+			BTreeNode parent = current(h + 1);
+			parent.children[childCount[h + 1]++] = node.filePos;
+		}
+		current[h] = null;
+		currentIndex[h]++;
+	}
+
+	/**
+	 * Finishes the nodes still open on the right edge of the tree.
+	 */
+	private void finishBuild() {
+		if (levelKeys[0] == 0) {
+			//nothing was added, keep the empty root
+			return;
+		}
+		for (int h = 1; h < levelNodes.length; h++) {
+			complete(h);
+		}
+	}
+
+	/**
+	 * Reader for one sorted run file during the merge.
+	 */
+	private static class Run implements Comparable<Run> {
+		DataInputStream in;
+		long key;
+		int count;
+
+		Run(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		/**
+		 * Moves to the next key in the run.
+		 *
+		 * @return false when the run is used up
+		 */
+		boolean next() throws IOException {
+			try {
+				key = in.readLong();
+				count = in.readInt();
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		public int compareTo(Run other) {
+			return Long.compare(key, other.key);
+		}
+	}
+}
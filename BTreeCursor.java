@@ -0,0 +1,189 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Walks the keys of a BTree in ascending order, starting at a lower bound.
+ * The cursor keeps the path from the root to the current key, so moving to
+ * the next key only reads the nodes that are new on the path instead of
+ * searching from the root again. Combined with lexicographic key order a
+ * prefix query becomes one run of the cursor over a range of keys.
+ *
+ * With a NodePrefetcher the cursor reads ahead: whenever it is at a key of
+ * an internal node, the next children of that node, up to the prefetch
+ * window, are already being read in the background. A B+ tree has its
+ * own cursor that walks the leaf chain. A cursor that is left before the
+ * end should be closed so the reads it started and will not take are
+ * dropped.
+ *
+ * @author Ben Mcavoy
+ */
+public class BTreeCursor {
+
+	protected BTree bt;
+	//reads nodes ahead, null to read each node when it is reached
+	private NodePrefetcher prefetcher;
+	//reads this cursor started and has not taken yet
+	private final Set<Long> queued = new HashSet<Long>();
+	//nodes on the path from the root, index[d] is the next key to return from nodes[d]
+	private BTreeNode[] nodes = new BTreeNode[8];
+	private int[] index = new int[8];
+	private int depth = -1;
+
+	protected long key = -1L;
+	protected int freq;
+
+	/**
+	 * Creates a cursor that is not positioned yet.
+	 *
+	 * @param bt tree to walk
+	 */
+	public BTreeCursor(BTree bt) {
+		this(bt, null);
+	}
+
+	/**
+	 * Creates a cursor that reads ahead and is not positioned yet.
+	 *
+	 * @param bt tree to walk
+	 * @param prefetcher reads the upcoming children in the background, null to read nodes as they are reached
+	 */
+	public BTreeCursor(BTree bt, NodePrefetcher prefetcher) {
+		this.bt = bt;
+		this.prefetcher = prefetcher;
+	}
+
+	/**
+	 * Positions the cursor so the next call to next returns the first key
+	 * that is greater than or equal to the lower bound.
+	 *
+	 * @param lowerBound smallest key to return
+	 */
+	public void seek(long lowerBound) {
+		depth = -1;
+		BTreeNode x = bt.root;
+		while (true) {
+			int i = x.find(lowerBound);
+			if (i >= 0) {
+				push(x, i);
+				return;
+			}
+			i = -i - 1;
+			push(x, i);
+			if (x.isLeaf || x.children[i] == -1L) {
+				return;
+			}
+			x = read(x.children[i]);
+		}
+	}
+
+	/**
+	 * Moves to the next key.
+	 *
+	 * @return true if there was another key, false at the end of the tree
+	 */
+	public boolean next() {
+		while (depth >= 0) {
+			BTreeNode x = nodes[depth];
+			int i = index[depth];
+			if (i < x.n) {
+				key = x.keys[i];
+				freq = x.freqs[i];
+				index[depth]++;
+				//everything in the child after this key comes next
+				if (!x.isLeaf) {
+					if (prefetcher != null && i + 1 + prefetcher.window() <= x.n) {
+						prefetch(x.children[i + 1 + prefetcher.window()]);
+					}
+					if (x.children[i + 1] != -1L) {
+						pushLeftmost(read(x.children[i + 1]));
+					}
+				}
+				return true;
+			}
+			depth--;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the current key.
+	 *
+	 * @return key the cursor is on
+	 */
+	public long key() {
+		return key;
+	}
+
+	/**
+	 * Gets the frequency of the current key.
+	 *
+	 * @return number of times the current key was inserted
+	 */
+	public int freq() {
+		return freq;
+	}
+
+	/**
+	 * Pushes the path from a node down to its smallest key.
+	 */
+	private void pushLeftmost(BTreeNode x) {
+		while (true) {
+			push(x, 0);
+			if (x.isLeaf || x.children[0] == -1L) {
+				return;
+			}
+			x = read(x.children[0]);
+		}
+	}
+
+	/**
+	 * Adds a node to the end of the path.
+	 */
+	private void push(BTreeNode x, int i) {
+		depth++;
+		if (depth == nodes.length) {
+			nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			index = Arrays.copyOf(index, index.length * 2);
+		}
+		nodes[depth] = x;
+		index[depth] = i;
+		//start reading the children that come after the one read next
+		if (prefetcher != null && !x.isLeaf) {
+			for (int c = i + 1; c <= Math.min(x.n, i + prefetcher.window()); c++) {
+				prefetch(x.children[c]);
+			}
+		}
+	}
+
+	/**
+	 * Starts reading a node ahead and remembers it until it is taken.
+	 */
+	protected void prefetch(long filePos) {
+		if (prefetcher.prefetch(filePos)) {
+			queued.add(filePos);
+		}
+	}
+
+	/**
+	 * Reads a node, through the prefetcher if there is one.
+	 */
+	protected BTreeNode read(long filePos) {
+		if (prefetcher == null) {
+			return bt.diskRead(filePos);
+		}
+		queued.remove(filePos);
+		return prefetcher.take(filePos);
+	}
+
+	/**
+	 * Drops the reads the cursor started for nodes it has not reached. A
+	 * cursor without a prefetcher has nothing to drop.
+	 */
+	public void close() {
+		for (long filePos : queued) {
+			prefetcher.cancel(filePos);
+		}
+		queued.clear();
+	}
+}
@@ -0,0 +1,367 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what a BTree does: node reads and writes, cache hits, misses and
+ * evictions, splits, the height of the tree and how long inserts and
+ * searches take. A tree only counts while a BTreeMetrics is attached with
+ * BTree.setMetrics, without one every counting spot is a single null check.
+ *
+ * The counters are LongAdders so threads that insert or search at the same
+ * time do not fight over them. The metrics can be registered as an MBean,
+ * printed as a summary or written as JSON when a run finishes.
+ *
+ * @author Ben Peterson
+ */
+public class BTreeMetrics implements BTreeMetricsMBean {
+
+	final LongAdder nodeReads = new LongAdder();
+	final LongAdder nodeWrites = new LongAdder();
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder bytesWritten = new LongAdder();
+	final LongAdder cacheHits = new LongAdder();
+	final LongAdder cacheMisses = new LongAdder();
+	final LongAdder pageCacheHits = new LongAdder();
+	final LongAdder bloomRejects = new LongAdder();
+	final LongAdder splits = new LongAdder();
+	final LongAdder rootSplits = new LongAdder();
+	final Histogram insertLatency = new Histogram();
+	final Histogram searchLatency = new Histogram();
+
+	private BTree bt;
+	private ObjectName name;
+
+	/**
+	 * Attaches the metrics to a tree, the height and the cache evictions
+	 * are read from it.
+	 *
+	 * @param bt tree being measured
+	 */
+	void attach(BTree bt) {
+		this.bt = bt;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server under
+	 * BTree:type=Metrics,name=&lt;name&gt;.
+	 *
+	 * @param runName name that tells this run apart, such as the BTree file name
+	 */
+	public void register(String runName) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("BTree:type=Metrics,name=" + ObjectName.quote(runName));
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println("Could not register the metrics MBean: " + e.getMessage());
+			name = null;
+		}
+	}
+
+	/**
+	 * Removes the MBean registered by register.
+	 */
+	public void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			//already gone
+		}
+		name = null;
+	}
+
+	/**
+	 * Records keys that were inserted together.
+	 *
+	 * @param nanos time taken for all of them
+	 * @param keys number of keys, each is recorded at the average time
+	 */
+	public void recordInserts(long nanos, int keys) {
+		if (keys > 0) {
+			insertLatency.record(nanos / keys, keys);
+		}
+	}
+
+	/**
+	 * Records keys that were searched for together.
+	 *
+	 * @param nanos time taken for all of them
+	 * @param keys number of keys, each is recorded at the average time
+	 */
+	public void recordSearches(long nanos, int keys) {
+		if (keys > 0) {
+			searchLatency.record(nanos / keys, keys);
+		}
+	}
+
+	@Override
+	public long getNodeReads() {
+		return nodeReads.sum();
+	}
+
+	@Override
+	public long getNodeWrites() {
+		return nodeWrites.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	@Override
+	public long getPageCacheHits() {
+		return pageCacheHits.sum();
+	}
+
+	@Override
+	public long getBloomRejects() {
+		return bloomRejects.sum();
+	}
+
+	@Override
+	public long getDirtyEvictions() {
+		return bt == null || bt.cache == null ? 0 : bt.cache.getDirtyEvictions();
+	}
+
+	@Override
+	public long getCleanEvictions() {
+		return bt == null || bt.cache == null ? 0 : bt.cache.getCleanEvictions();
+	}
+
+	@Override
+	public long getSplits() {
+		return splits.sum();
+	}
+
+	@Override
+	public long getRootSplits() {
+		return rootSplits.sum();
+	}
+
+	@Override
+	public int getHeight() {
+		return bt == null ? 0 : bt.getHeight();
+	}
+
+	@Override
+	public long getInserts() {
+		return insertLatency.count();
+	}
+
+	@Override
+	public double getInsertMeanMicros() {
+		return insertLatency.mean() / 1000.0;
+	}
+
+	@Override
+	public double getInsertP50Micros() {
+		return insertLatency.percentile(0.50) / 1000.0;
+	}
+
+	@Override
+	public double getInsertP99Micros() {
+		return insertLatency.percentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public long getSearches() {
+		return searchLatency.count();
+	}
+
+	@Override
+	public double getSearchMeanMicros() {
+		return searchLatency.mean() / 1000.0;
+	}
+
+	@Override
+	public double getSearchP50Micros() {
+		return searchLatency.percentile(0.50) / 1000.0;
+	}
+
+	@Override
+	public double getSearchP99Micros() {
+		return searchLatency.percentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public void reset() {
+		nodeReads.reset();
+		nodeWrites.reset();
+		bytesRead.reset();
+		bytesWritten.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		pageCacheHits.reset();
+		bloomRejects.reset();
+		splits.reset();
+		rootSplits.reset();
+		insertLatency.reset();
+		searchLatency.reset();
+		if (bt != null && bt.cache != null) {
+			bt.cache.resetCounters();
+		}
+	}
+
+	/**
+	 * Prints the metrics as a readable summary.
+	 *
+	 * @param out stream to print to
+	 */
+	public void printSummary(PrintStream out) {
+		out.println("Metrics:");
+		out.println("Node reads: " + getNodeReads() + " (" + getBytesRead() + " bytes)");
+		out.println("Node writes: " + getNodeWrites() + " (" + getBytesWritten() + " bytes)");
+		out.println("Cache hits: " + getCacheHits() + ", misses: " + getCacheMisses()
+				+ ", page cache hits: " + getPageCacheHits());
+		out.println("Bloom filter rejects: " + getBloomRejects());
+		out.println("Cache evictions: " + getDirtyEvictions() + " dirty, " + getCleanEvictions() + " clean");
+		out.println("Splits: " + getSplits() + " (" + getRootSplits() + " root)");
+		out.println("Height: " + getHeight());
+		out.println(String.format("Inserts: %d, mean %.2f us, p50 %.2f us, p99 %.2f us",
+				getInserts(), getInsertMeanMicros(), getInsertP50Micros(), getInsertP99Micros()));
+		out.println(String.format("Searches: %d, mean %.2f us, p50 %.2f us, p99 %.2f us",
+				getSearches(), getSearchMeanMicros(), getSearchP50Micros(), getSearchP99Micros()));
+	}
+
+	/**
+	 * Writes the metrics to a file as one JSON object.
+	 *
+	 * @param file file to write
+	 * @throws IOException if the file can not be written
+	 */
+	public void writeJson(File file) throws IOException {
+		PrintStream out = new PrintStream(file, "UTF-8");
+		try {
+			out.println("{");
+			out.println("  \"nodeReads\": " + getNodeReads() + ",");
+			out.println("  \"nodeWrites\": " + getNodeWrites() + ",");
+			out.println("  \"bytesRead\": " + getBytesRead() + ",");
+			out.println("  \"bytesWritten\": " + getBytesWritten() + ",");
+			out.println("  \"cacheHits\": " + getCacheHits() + ",");
+			out.println("  \"cacheMisses\": " + getCacheMisses() + ",");
+			out.println("  \"pageCacheHits\": " + getPageCacheHits() + ",");
+			out.println("  \"bloomRejects\": " + getBloomRejects() + ",");
+			out.println("  \"dirtyEvictions\": " + getDirtyEvictions() + ",");
+			out.println("  \"cleanEvictions\": " + getCleanEvictions() + ",");
+			out.println("  \"splits\": " + getSplits() + ",");
+			out.println("  \"rootSplits\": " + getRootSplits() + ",");
+			out.println("  \"height\": " + getHeight() + ",");
+			out.println("  \"insertLatencyNanos\": " + insertLatency.toJson() + ",");
+			out.println("  \"searchLatencyNanos\": " + searchLatency.toJson());
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Latency histogram with one bucket per power of two nanoseconds.
+	 * Bucket b counts latencies from 2^(b-1) up to, not including, 2^b.
+	 */
+	static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+
+		Histogram() {
+			for (int b = 0; b < buckets.length; b++) {
+				buckets[b] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Records samples that all took the same time.
+		 */
+		void record(long nanos, int samples) {
+			buckets[64 - Long.numberOfLeadingZeros(Math.max(0, nanos))].add(samples);
+			count.add(samples);
+			total.add(nanos * samples);
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) total.sum() / n;
+		}
+
+		/**
+		 * Upper bound of the bucket holding the given fraction of samples.
+		 */
+		long percentile(double fraction) {
+			long n = count.sum();
+			if (n == 0) {
+				return 0;
+			}
+			long target = (long) Math.ceil(n * fraction);
+			long seen = 0;
+			for (int b = 0; b < buckets.length; b++) {
+				seen += buckets[b].sum();
+				if (seen >= target) {
+					return b == 0 ? 0 : (1L << b) - 1;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		void reset() {
+			for (LongAdder bucket : buckets) {
+				bucket.reset();
+			}
+			count.reset();
+			total.reset();
+		}
+
+		/**
+		 * Count, mean, percentiles and the buckets that are not empty,
+		 * keyed by their upper bound.
+		 */
+		String toJson() {
+			StringBuilder json = new StringBuilder();
+			json.append("{\"count\": ").append(count()).append(", \"mean\": ").append(String.format("%.1f", mean()))
+				.append(", \"p50\": ").append(percentile(0.50)).append(", \"p99\": ").append(percentile(0.99))
+				.append(", \"buckets\": {");
+			boolean first = true;
+			for (int b = 0; b < buckets.length; b++) {
+				long c = buckets[b].sum();
+				if (c == 0) {
+					continue;
+				}
+				if (!first) {
+					json.append(", ");
+				}
+				first = false;
+				json.append('"').append(b == 0 ? 0 : (1L << b) - 1).append("\": ").append(c);
+			}
+			return json.append("}}").toString();
+		}
+	}
+}
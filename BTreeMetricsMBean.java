@@ -0,0 +1,77 @@
+/**
+ * Management interface of BTreeMetrics. Every getter is an attribute of the
+ * MBean, so the counters can be watched with jconsole or any other JMX
+ * client while a tree is built or searched.
+ *
+ * @author Ben Peterson
+ */
+public interface BTreeMetricsMBean {
+
+	/** @return nodes read from the file */
+	long getNodeReads();
+
+	/** @return nodes written to the file */
+	long getNodeWrites();
+
+	/** @return bytes read from the file */
+	long getBytesRead();
+
+	/** @return bytes written to the file */
+	long getBytesWritten();
+
+	/** @return node lookups answered by the pinned levels or the node cache */
+	long getCacheHits();
+
+	/** @return node lookups that missed the pinned levels and the node cache */
+	long getCacheMisses();
+
+	/** @return node cache misses answered by the page cache */
+	long getPageCacheHits();
+
+	/** @return searched keys the Bloom filter showed were not in the tree, so no node was read */
+	long getBloomRejects();
+
+	/** @return changed nodes evicted from the node cache, each one written to the file */
+	long getDirtyEvictions();
+
+	/** @return unchanged nodes evicted from the node cache */
+	long getCleanEvictions();
+
+	/** @return node splits, root splits included */
+	long getSplits();
+
+	/** @return root splits */
+	long getRootSplits();
+
+	/** @return number of levels in the tree */
+	int getHeight();
+
+	/** @return keys inserted */
+	long getInserts();
+
+	/** @return mean insert latency in microseconds */
+	double getInsertMeanMicros();
+
+	/** @return median insert latency in microseconds */
+	double getInsertP50Micros();
+
+	/** @return 99th percentile insert latency in microseconds */
+	double getInsertP99Micros();
+
+	/** @return keys searched for */
+	long getSearches();
+
+	/** @return mean search latency in microseconds */
+	double getSearchMeanMicros();
+
+	/** @return median search latency in microseconds */
+	double getSearchP50Micros();
+
+	/** @return 99th percentile search latency in microseconds */
+	double getSearchP99Micros();
+
+	/**
+	 * Sets every counter and histogram back to 0.
+	 */
+	void reset();
+}
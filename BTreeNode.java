@@ -1,54 +1,395 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Basic BTree node. Stores location on file,
- * keys and key counter, children pointers, and 
- * whether it is a leaf or not. 
- * 
+ * keys and key counter, children pointers, and
+ * whether it is a leaf or not.
+ *
+ * Keys and their counters are kept in two primitive arrays
+ * instead of one TreeObject per key, so a node is only a
+ * handful of objects no matter the degree, and moving keys
+ * around is a System.arraycopy. Unused key slots hold -1.
+ *
+ * A node can be written in two layouts. writeTo uses fixed size
+ * slots for every key and child. writePacked is the compressed
+ * layout used by trees created with the COMPRESSED flag. B+ trees
+ * use writeBPlus instead of writeTo, where a leaf only keeps the
+ * link to the next leaf and an internal node has no counters.
+ *
+
  * @author Ben Mcavoy, Ben Peterson
  */
 public class BTreeNode {
-	
-	public TreeObject[] keys;
+
+	public long[] keys;
+	public int[] freqs; //counter for the key at the same index, null in B+ tree internal nodes
 	public long[] children;
 	public boolean isLeaf;
 	public int n; //current number of keys
 	public long filePos; //position of node in file
-	
+
 	/**
-	 * Constructor. Sets file position and creates 
+	 * Constructor. Sets file position and creates
 	 * arrays large enough to hold keys and children.
 	 * Intializes all arrays.
-	 * 
+	 *
 	 * @param t degree of tree
 	 * @param filePos location in the BTree file
 	 */
 	public BTreeNode(int t, long filePos) {
-		this.keys = new TreeObject[(2*t-1)];		
-		for(int i=0; i<keys.length; i++) {
-			keys[i] = new TreeObject(-1L, 0);
-		}	
-		
-		this.children = new long[(2*t)];
-		for(int i=0; i<children.length; i++) {
-			children[i] = -1L;
+		this(t, filePos, true);
+	}
+
+	/**
+	 * Constructor for a node that may have no counters. The internal
+	 * nodes of a B+ tree only hold the keys that separate their children,
+	 * so they have no counters and start out as internal nodes.
+	 *
+	 * @param t degree of the node
+	 * @param filePos location in the BTree file
+	 * @param counted false for a B+ tree internal node
+	 */
+	public BTreeNode(int t, long filePos, boolean counted) {
+		this.keys = new long[(2*t-1)];
+		Arrays.fill(keys, -1L);
+		if (counted) {
+			this.freqs = new int[(2*t-1)];
 		}
-		
-		this.isLeaf = true;
+
+		this.children = new long[(2*t)];
+		Arrays.fill(children, -1L);
+
+		this.isLeaf = counted;
 		n = 0;
 		this.filePos = filePos;
 	}
-	
+
+	/**
+	 * Finds a key with a binary search over the keys in use.
+	 *
+	 * @param key key to look for
+	 * @return index of the key, or -(insertion point)-1 if it is not in the node.
+	 * The insertion point is also the index of the child that covers the key.
+	 */
+	public int find(long key) {
+		return Arrays.binarySearch(keys, 0, n, key);
+	}
+
+	/**
+	 * Inserts a key at an index, moving the keys after it up one slot.
+	 *
+	 * @param i index for the new key
+	 * @param key key to insert
+	 * @param freq counter for the key, ignored by a node without counters
+	 */
+	public void insertAt(int i, long key, int freq) {
+		System.arraycopy(keys, i, keys, i+1, n-i);
+		keys[i] = key;
+		if (freqs != null) {
+			System.arraycopy(freqs, i, freqs, i+1, n-i);
+			freqs[i] = freq;
+		}
+		n++;
+	}
+
+	/**
+	 * Empties the key slots from index from up to, not including, to.
+	 *
+	 * @param from first slot to clear
+	 * @param to slot after the last one to clear
+	 */
+	public void clearKeys(int from, int to) {
+		Arrays.fill(keys, from, to, -1L);
+		if (freqs != null) {
+			Arrays.fill(freqs, from, to, 0);
+		}
+	}
+
+	/**
+	 * Writes the node to a page buffer in the layout of the BTree file:
+	 * each key with its counter, the children, n, isLeaf and filePos.
+	 *
+	 * @param page buffer to write to
+	 */
+	public void writeTo(ByteBuffer page) {
+		for (int i = 0; i < keys.length; i++) {
+			page.putLong(keys[i]);
+			page.putInt(freqs[i]);
+		}
+		page.asLongBuffer().put(children);
+		page.position(page.position() + children.length * 8);
+		page.putInt(n);
+		page.put((byte) (isLeaf ? 1 : 0));
+		page.putLong(filePos);
+	}
+
+	/**
+	 * Reads the node from a page buffer written by writeTo.
+	 *
+	 * @param page buffer to read from
+	 */
+	public void readFrom(ByteBuffer page) {
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = page.getLong();
+			freqs[i] = page.getInt();
+		}
+		page.asLongBuffer().get(children);
+		page.position(page.position() + children.length * 8);
+		n = page.getInt();
+		isLeaf = page.get() != 0;
+		filePos = page.getLong();
+	}
+
+	/**
+	 * Writes the node to a page buffer in the layout of B+ tree files:
+	 * isLeaf and n, then for a leaf each key with its counter and the next
+	 * leaf, and for an internal node the keys and the children. The file
+	 * position is not written, it is passed in when the node is read.
+	 *
+	 * @param page buffer to write to
+	 */
+	public void writeBPlus(ByteBuffer page) {
+		page.put((byte) (isLeaf ? 1 : 0));
+		page.putInt(n);
+		if (isLeaf) {
+			for (int i = 0; i < keys.length; i++) {
+				page.putLong(keys[i]);
+				page.putInt(freqs[i]);
+			}
+			page.putLong(children[0]);
+		}
+		else {
+			page.asLongBuffer().put(keys).put(children);
+			page.position(page.position() + (keys.length + children.length) * 8);
+		}
+	}
+
+	/**
+	 * Reads the node from a page buffer written by writeBPlus. The node
+	 * must have counters if the page holds a leaf and none if it holds an
+	 * internal node, the first byte of the page tells which.
+	 *
+	 * @param page buffer to read from
+	 * @param filePos location of the page in the file
+	 */
+	public void readBPlus(ByteBuffer page, long filePos) {
+		isLeaf = page.get() != 0;
+		n = page.getInt();
+		if (isLeaf) {
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = page.getLong();
+				freqs[i] = page.getInt();
+			}
+			Arrays.fill(children, -1L);
+			children[0] = page.getLong();
+		}
+		else {
+			page.asLongBuffer().get(keys).get(children);
+			page.position(page.position() + (keys.length + children.length) * 8);
+		}
+		this.filePos = filePos;
+	}
+
+	/**
+	 * Number of bytes writeBPlus uses for a leaf.
+	 *
+	 * @param t degree of the leaves
+	 * @return size of a leaf on disk
+	 */
+	public static int leafSize(int t) {
+		return 1 + 4 + (2*t-1)*(8+4) + 8;
+	}
+
+	/**
+	 * Number of bytes writeBPlus uses for an internal node.
+	 *
+	 * @param t degree of the internal nodes
+	 * @return size of an internal node on disk
+	 */
+	public static int innerSize(int t) {
+		return 1 + 4 + (2*t-1)*8 + (2*t)*8;
+	}
+
+	/**
+	 * Writes the node to a page buffer in the compressed layout: isLeaf, n
+	 * as a varint, the bit width of the keys, the keys packed to that width,
+	 * the counters as varints and the children as page numbers. The first
+	 * key is stored as it is and every other key as the gap to the key
+	 * before it, so the width is the one needed by the largest of those.
+	 * Leaves only store children[0], which a B+ tree uses for its leaf chain,
+	 * and a node without counters, a B+ tree internal node, stores none.
+	 *
+	 * @param page buffer to write to
+	 * @param pageSize number of bytes in one page of the file
+	 */
+	public void writePacked(ByteBuffer page, int pageSize) {
+		page.put((byte) (isLeaf ? 1 : 0));
+		putVarint(page, n);
+		long gaps = 0;
+		for (int i = 0; i < n; i++) {
+			gaps |= i == 0 ? keys[0] : keys[i] - keys[i-1];
+		}
+		int width = 64 - Long.numberOfLeadingZeros(gaps);
+		page.put((byte) width);
+
+		//bits waiting to be written, lowest bits first
+		long bits = 0;
+		int used = 0;
+		for (int i = 0; i < n; i++) {
+			long value = i == 0 ? keys[0] : keys[i] - keys[i-1];
+			//at most 32 bits at a time so the pending bits never overflow
+			for (int left = width; left > 0; ) {
+				int take = Math.min(left, 32);
+				bits |= (value & ((1L << take) - 1)) << used;
+				used += take;
+				value >>>= take;
+				left -= take;
+				while (used >= 8) {
+					page.put((byte) bits);
+					bits >>>= 8;
+					used -= 8;
+				}
+			}
+		}
+		if (used > 0) {
+			page.put((byte) bits);
+		}
+
+		for (int i = 0; freqs != null && i < n; i++) {
+			putVarint(page, freqs[i]);
+		}
+		int stored = isLeaf ? 1 : n + 1;
+		for (int i = 0; i < stored; i++) {
+			page.putInt(children[i] == -1L ? -1 : (int) (children[i] / pageSize));
+		}
+	}
+
+	/**
+	 * Reads the node from a page buffer written by writePacked. The
+	 * compressed layout does not hold the file position, so it is
+	 * passed in. Counters are only read into a node that has them.
+	 *
+	 * @param page buffer to read from
+	 * @param pageSize number of bytes in one page of the file
+	 * @param filePos location of the page in the file
+	 */
+	public void readPacked(ByteBuffer page, int pageSize, long filePos) {
+		isLeaf = page.get() != 0;
+		n = getVarint(page);
+		int width = page.get();
+
+		long bits = 0;
+		int avail = 0;
+		long prev = 0;
+		for (int i = 0; i < n; i++) {
+			long value = 0;
+			for (int done = 0; done < width; ) {
+				int take = Math.min(width - done, 32);
+				while (avail < take) {
+					bits |= (long) (page.get() & 0xFF) << avail;
+					avail += 8;
+				}
+				value |= (bits & ((1L << take) - 1)) << done;
+				bits >>>= take;
+				avail -= take;
+				done += take;
+			}
+			prev = i == 0 ? value : prev + value;
+			keys[i] = prev;
+		}
+		clearKeys(n, keys.length);
+
+		for (int i = 0; freqs != null && i < n; i++) {
+			freqs[i] = getVarint(page);
+		}
+		Arrays.fill(children, -1L);
+		int stored = isLeaf ? 1 : n + 1;
+		for (int i = 0; i < stored; i++) {
+			int pageNumber = page.getInt();
+			children[i] = pageNumber == -1 ? -1L : (long) pageNumber * pageSize;
+		}
+		this.filePos = filePos;
+	}
+
+	/**
+	 * Largest number of bytes writePacked can use for a node of a tree.
+	 * This is a full internal node whose counters all need 5 varint bytes.
+	 *
+	 * @param t degree of the tree
+	 * @param k subsequence length, keys use at most 2k bits
+	 * @return size of a compressed node on disk
+	 */
+	public static int packedSize(int t, int k) {
+		int keyBytes = ((2*t-1) * 2*k + 7) / 8;
+		return 1 + 5 + 1 + keyBytes + (2*t-1)*5 + (2*t)*4;
+	}
+
+	/**
+	 * Largest number of bytes writePacked can use for a B+ tree leaf, which
+	 * stores one child, the next leaf.
+	 *
+	 * @param t degree of the leaves
+	 * @param k subsequence length, keys use at most 2k bits
+	 * @return size of a compressed leaf on disk
+	 */
+	public static int packedLeafSize(int t, int k) {
+		int keyBytes = ((2*t-1) * 2*k + 7) / 8;
+		return 1 + 5 + 1 + keyBytes + (2*t-1)*5 + 4;
+	}
+
+	/**
+	 * Largest number of bytes writePacked can use for a B+ tree internal
+	 * node, which has no counters.
+	 *
+	 * @param t degree of the internal nodes
+	 * @param k subsequence length, keys use at most 2k bits
+	 * @return size of a compressed internal node on disk
+	 */
+	public static int packedInnerSize(int t, int k) {
+		int keyBytes = ((2*t-1) * 2*k + 7) / 8;
+		return 1 + 5 + 1 + keyBytes + (2*t)*4;
+	}
+
+	/**
+	 * Writes a non-negative int 7 bits at a time, lowest bits first, with
+	 * the high bit of each byte set when more bytes follow.
+	 */
+	private static void putVarint(ByteBuffer page, int value) {
+		while ((value & ~0x7F) != 0) {
+			page.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		page.put((byte) value);
+	}
+
+	/**
+	 * Reads an int written by putVarint.
+	 */
+	private static int getVarint(ByteBuffer page) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = page.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
 	/**
 	 * Prints node information. This is mostly
-	 * for troubleshooting purposes. 
+	 * for troubleshooting purposes.
 	 */
 	public void printNode() {
-		
+
 		System.out.println("filePos: " + filePos);
 		System.out.println("isLeaf: " + isLeaf);
 		System.out.println("n: " + n);
 		System.out.println("keys: ");
 		for(int i = 0; i < keys.length; i++) {
-			System.out.print(keys[i].key + ", ");
+			System.out.print(keys[i] + ", ");
 		}
 		System.out.println();
 		System.out.println("children: " );
@@ -57,17 +398,17 @@ public class BTreeNode {
 		}
 		System.out.println();
 	}
-	
+
 	/**
 	 * Used for cache comparisions to see if nodes are equal.
-	 * 
+	 *
 	 * @param t node to compare to
 	 * @return true if the same, false otherwise
 	 */
 	public boolean equals(BTreeNode t) {
 		return this.filePos == t.filePos;
 	}
-	
+
 
 
 }
@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Blocked Bloom filter over the keys of a BTree, kept in a file next to the
+ * BTree file. GeneBankSearch asks it first and answers 0 for a key it has
+ * never seen without reading a single node. A key in the tree is always
+ * let through, a key that is not is let through only at about the false
+ * positive rate the filter was made with.
+ *
+ * The bits are split into blocks of 512 bits, the size of a cache line.
+ * Every bit of a key is in the one block its hash picks, so a lookup touches
+ * one cache line, or one page of the file, instead of one per bit.
+ *
+ * The file starts with the length and last modified time of the BTree file
+ * it was made from, like FrequencySummary, and is memory mapped when read.
+ * A filter whose BTree file has changed since is stale and is not used.
+ *
+ * @author Ben Peterson
+ */
+public class BloomFilter {
+	private static final int MAGIC = 0x47424B42; //"GBKB"
+	private static final int HEADER = 40;
+	//longs in one 512 bit block
+	private static final int BLOCK_LONGS = 8;
+
+	/** false positive rate used when none is given */
+	public static final double DEFAULT_FPP = 0.01;
+
+	private final LongBuffer bits;
+	private final int blocks;
+	private final int hashes;
+	private final long count;
+
+	private BloomFilter(LongBuffer bits, int blocks, int hashes, long count) {
+		this.bits = bits;
+		this.blocks = blocks;
+		this.hashes = hashes;
+		this.count = count;
+	}
+
+	/**
+	 * Gets the file the filter of a BTree file is kept in.
+	 *
+	 * @param btreeFile BTree file
+	 * @return filter file next to it
+	 */
+	public static File fileFor(File btreeFile) {
+		return new File(btreeFile.getPath() + ".bloom");
+	}
+
+	/**
+	 * Walks every key of the tree and adds it to a new filter.
+	 *
+	 * @param bt tree to add, the cache must be written first
+	 * @param fpp false positive rate wanted, between 0 and 1
+	 * @return the filter
+	 */
+	public static BloomFilter build(BTree bt, double fpp) {
+		//the filter is sized for the number of distinct keys, so they are counted first
+		long n = 0;
+		BTreeCursor cursor = bt.cursor(0L);
+		while (cursor.next()) {
+			n++;
+		}
+		long wanted = (long) Math.ceil(Math.max(n, 1) * -Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		//one mapping holds the whole filter, so it stays under 2 GB
+		int blocks = (int) Math.min(Integer.MAX_VALUE / (BLOCK_LONGS * 8), (wanted + 511) / 512);
+		int hashes = (int) Math.max(1, Math.min(16, Math.round((double) blocks * 512 / Math.max(n, 1) * Math.log(2))));
+		BloomFilter filter = new BloomFilter(LongBuffer.allocate(blocks * BLOCK_LONGS), blocks, hashes, n);
+		cursor = bt.cursor(0L);
+		while (cursor.next()) {
+			filter.add(cursor.key());
+		}
+		return filter;
+	}
+
+	/**
+	 * Sets the bits of a key.
+	 */
+	private void add(long key) {
+		long h = mix(key);
+		int base = block(h);
+		long g = mix(h);
+		int h1 = (int) g, h2 = (int) (g >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			//the top 9 bits of the probe pick one of the 512 bits of the block
+			int bit = (h1 + i * h2) >>> 23;
+			int index = base + (bit >>> 6);
+			bits.put(index, bits.get(index) | (1L << bit));
+		}
+	}
+
+	/**
+	 * Checks whether a key may be in the tree. Only absolute reads are used,
+	 * so many threads can check keys at once.
+	 *
+	 * @param key key in the tree's key order and canonical form
+	 * @return false if the key is certainly not in the tree
+	 */
+	public boolean mightContain(long key) {
+		long h = mix(key);
+		int base = block(h);
+		long g = mix(h);
+		int h1 = (int) g, h2 = (int) (g >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (h1 + i * h2) >>> 23;
+			if ((bits.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the index of the first long of the block a hash picks.
+	 */
+	private int block(long h) {
+		return (int) (((h >>> 32) * blocks) >>> 32) * BLOCK_LONGS;
+	}
+
+	/**
+	 * Spreads the bits of a key over the whole long, the finalizer of
+	 * MurmurHash3.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Gets the number of keys in the filter.
+	 *
+	 * @return distinct keys added
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * Gets the size of the bits of the filter.
+	 *
+	 * @return size in bytes
+	 */
+	public long sizeInBytes() {
+		return (long) blocks * BLOCK_LONGS * 8;
+	}
+
+	/**
+	 * Saves the filter next to the BTree file.
+	 *
+	 * @param btreeFile BTree file the filter was made from
+	 * @throws IOException if the filter can not be written
+	 */
+	public void write(File btreeFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileFor(btreeFile), "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putInt(hashes).putLong(btreeFile.length()).putLong(btreeFile.lastModified())
+				.putLong(count).putInt(blocks).putInt(0);
+			header.flip();
+			channel.write(header);
+			ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+			LongBuffer longs = chunk.asLongBuffer();
+			for (int i = 0; i < bits.capacity(); ) {
+				longs.clear();
+				while (longs.hasRemaining() && i < bits.capacity()) {
+					longs.put(bits.get(i++));
+				}
+				chunk.clear().limit(longs.position() * 8);
+				while (chunk.hasRemaining()) {
+					channel.write(chunk);
+				}
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Maps the filter of a BTree file read only.
+	 *
+	 * @param btreeFile BTree file
+	 * @return the filter, null if there is none or the BTree file changed since it was made
+	 * @throws IOException if the filter can not be read
+	 */
+	public static BloomFilter read(File btreeFile) throws IOException {
+		File file = fileFor(btreeFile);
+		if (!file.exists()) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining() && channel.read(header) != -1) {
+			}
+			header.flip();
+			if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+				return null;
+			}
+			int hashes = header.getInt();
+			if (header.getLong() != btreeFile.length() || header.getLong() != btreeFile.lastModified()) {
+				return null;
+			}
+			long count = header.getLong();
+			int blocks = header.getInt();
+			long size = (long) blocks * BLOCK_LONGS * 8;
+			if (channel.size() < HEADER + size) {
+				return null;
+			}
+			//the mapping stays valid after the channel is closed
+			LongBuffer bits = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, size).asLongBuffer();
+			return new BloomFilter(bits, blocks, hashes, count);
+		} finally {
+			channel.close();
+		}
+	}
+}
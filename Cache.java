@@ -1,114 +1,199 @@
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
- * Implements a 1 level cache. 
- * The cache stores btree nodes in a linked list. 
- * Each node represents one open space in the cache. 
- *  
+ * Implements the node cache, the first level of the BTree's caches.
+ * The top levels of the tree can be pinned by the BTree so they are
+ * never in here, and a PageCache of raw pages can sit under it.
+ * The cache stores btree nodes in a hash map kept in least recently
+ * used order, so finding a node by its file offset and moving it to
+ * the front of the cache both take constant time. Each entry remembers
+ * whether the node was changed since it was last written to disk, so
+ * only changed nodes are written back when they are evicted.
+ *
  * @author Ben Peterson
  */
-public class Cache { 
-	//cache
-	private LinkedList<BTreeNode> cache1;
+public class Cache {
+	//cache, ordered from least to most recently used
+	private LinkedHashMap<Long, Entry> cache1;
 	//cache size
-	private final int CACHE_MAX_SIZE; 
-	
+	private final int CACHE_MAX_SIZE;
+	//evictions since the counters were last reset
+	private long dirtyEvictions, cleanEvictions;
+
+	/**
+	 * One space in the cache.
+	 */
+	private static class Entry {
+		BTreeNode node;
+		boolean dirty;
+
+		Entry(BTreeNode node, boolean dirty) {
+			this.node = node;
+			this.dirty = dirty;
+		}
+	}
+
 	/**
 	 * Constructor for one level cache.
-	 * 
+	 *
 	 * @param cache1Size Size for 1st-level cache
 	 */
 	public Cache(int cache1Size) {
 		//initialize class variables
-		cache1 = new LinkedList<BTreeNode>();
+		cache1 = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
 		this.CACHE_MAX_SIZE = cache1Size;
 
 	}//end of Cache
-		
+
 	/**
-	 * Adds an object to the cache if it does not
-	 * already exist. Moves object to front of the
+	 * Adds a changed node to the cache if it does not
+	 * already exist. Moves node to front of the
 	 * cache if it does exist.
-	 * 
+	 *
 	 * @param toAdd object to be added to the cache
+	 * @return node that was evicted and needs to be written to disk, null if none
 	 */
 	public BTreeNode addObject(BTreeNode toAdd) {
-		BTreeNode returnNode = null;
-		if (isFull()) {
-			 returnNode = cache1.removeLast();
-		}
-		BTreeNode moveToFront = getObject(toAdd);
-		if (moveToFront == null){
-			cache1.addFirst(toAdd);
+		return addObject(toAdd, true);
+	}//end of addObject
+
+	/**
+	 * Adds a node to the cache if it does not already exist. Moves node
+	 * to front of the cache if it does exist. A node that was just read
+	 * from disk is added clean, a node that was changed is added dirty.
+	 * A dirty node stays dirty until it is written.
+	 *
+	 * @param toAdd object to be added to the cache
+	 * @param dirty true if the node differs from its copy on disk
+	 * @return node that was evicted and needs to be written to disk, null if none
+	 */
+	public BTreeNode addObject(BTreeNode toAdd, boolean dirty) {
+		Entry entry = cache1.get(toAdd.filePos);
+		if (entry != null) { //already in cache, the get moved it to front
+			entry.node = toAdd;
+			entry.dirty |= dirty;
+			return null;
 		}
-		else { //already in cache move to front
-			cache1.addFirst(moveToFront);
+		cache1.put(toAdd.filePos, new Entry(toAdd, dirty));
+		if (cache1.size() > CACHE_MAX_SIZE) {
+			Iterator<Entry> eldest = cache1.values().iterator();
+			Entry evicted = eldest.next();
+			eldest.remove();
+			if (evicted.dirty) {
+				dirtyEvictions++;
+				return evicted.node;
+			}
+			cleanEvictions++;
 		}
-		return returnNode;
+		return null;
 	}//end of addObject
-	
+
 	/**
-	 * Looks for BTreeNode in cache and returns it if found. 
-	 * 
+	 * Looks for BTreeNode in cache and returns it if found.
+	 *
 	 * @param toGet object to check cache for
 	 * @return  BTreeNode if found, null if not found
 	 */
 	public BTreeNode getObject(BTreeNode toGet) {
-		//look for object in cache and return it if found
-		for (int i = 0; i < cache1.size(); i++) {
-			if (cache1.get(i).equals(toGet)) {
-
-				return cache1.remove(i);
-			}
-		}
-		//not found
-		return null;
+		return getObject(toGet.filePos);
 	}//end of getObject
-	
+
 	/**
-	 * Looks for BTreeNode by file offset in cache and returns it if found. 
-	 * 
-	 * @param toGet object to check cache for
+	 * Looks for BTreeNode by file offset in cache and returns it if found.
+	 *
+	 * @param fileOffset file position of the node to check cache for
 	 * @return  BTreeNode if found, null if not found
 	 */
 	public BTreeNode getObject(long fileOffset) {
-		//look for object in cache and return it if found
-		for (int i = 0; i < cache1.size(); i++) {
-			if (cache1.get(i).filePos == fileOffset) {
-				BTreeNode toReturn = cache1.remove(i);
-				cache1.addFirst(toReturn);
-				return toReturn;
-			}
+		Entry entry = cache1.get(fileOffset);
+		if (entry == null) {
+			//not found
+			return null;
 		}
-		//not found
-		return null;
+		return entry.node;
 	}//end of getObject
-	
+
 	/**
-	 * Returns last node in the cache.
-	 * 
-	 * @return last node in cache
+	 * Removes a node from the cache without writing it. Used when a
+	 * node is moved to a new file position.
+	 *
+	 * @param fileOffset file position of the node to remove
+	 * @return node that was removed, null if it was not cached
 	 */
-	public BTreeNode getLast () {
-		return cache1.removeLast();
-	}
+	public BTreeNode removeObject(long fileOffset) {
+		Entry entry = cache1.remove(fileOffset);
+		return entry == null ? null : entry.node;
+	}//end of removeObject
 
+	/**
+	 * Gets all changed nodes in file offset order and marks them
+	 * clean. The caller is expected to write them to disk.
+	 *
+	 * @return dirty nodes sorted by file position
+	 */
+	public List<BTreeNode> getDirty() {
+		List<BTreeNode> dirty = new ArrayList<BTreeNode>();
+		for (Entry entry : cache1.values()) {
+			if (entry.dirty) {
+				dirty.add(entry.node);
+				entry.dirty = false;
+			}
+		}
+		Collections.sort(dirty, new Comparator<BTreeNode>() {
+			public int compare(BTreeNode a, BTreeNode b) {
+				return Long.compare(a.filePos, b.filePos);
+			}
+		});
+		return dirty;
+	}//end of getDirty
 
 	/**
 	 * Checks if cache is full
-	 * 
+	 *
 	 * @return true if full false otherwise
 	 */
 	public boolean isFull() {
-		return cache1.size() == CACHE_MAX_SIZE;
+		return cache1.size() >= CACHE_MAX_SIZE;
 	}
-	
+
 	/**
 	 * Gets cache size
-	 * 
+	 *
 	 * @return cacheSize
 	 */
 	public int cacheSize() {
 		return cache1.size();
 	}
-}//end of class Cache
\ No newline at end of file
+
+	/**
+	 * Gets the number of changed nodes evicted, each of them had to be
+	 * written to disk.
+	 *
+	 * @return dirty evictions
+	 */
+	public long getDirtyEvictions() {
+		return dirtyEvictions;
+	}
+
+	/**
+	 * Gets the number of unchanged nodes evicted.
+	 *
+	 * @return clean evictions
+	 */
+	public long getCleanEvictions() {
+		return cleanEvictions;
+	}
+
+	/**
+	 * Sets the eviction counters back to 0.
+	 */
+	public void resetCounters() {
+		dirtyEvictions = 0;
+		cleanEvictions = 0;
+	}
+}//end of class Cache
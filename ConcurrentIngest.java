@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a gbk file into a BTree with several threads inserting into the
+ * tree at the same time. The calling thread scans the file and hands the
+ * keys out in blocks through a bounded queue, and each writer thread takes
+ * blocks off the queue and adds their keys with BTree.insertConcurrent, so
+ * the threads only wait for each other where they meet in the tree.
+ *
+ * @author Nick Figura
+ */
+public class ConcurrentIngest {
+
+	/** number of keys handed to a writer thread at a time */
+	public static final int BLOCK_KEYS = 1 << 14;
+	//an empty block tells a writer there are no more keys
+	private static final long[] END = new long[0];
+
+	private BTree bt;
+	private int writers;
+	private BlockingQueue<long[]> blocks;
+	private long keys;
+	private long readNanos, totalNanos;
+	private volatile RuntimeException failure;
+
+	/**
+	 * Creates a concurrent reader for a tree.
+	 *
+	 * @param bt tree that receives the subsequences
+	 * @param writers number of threads inserting into the tree
+	 */
+	public ConcurrentIngest(BTree bt, int writers) {
+		this.bt = bt;
+		this.writers = writers;
+		this.blocks = new ArrayBlockingQueue<long[]>(writers * 4);
+	}
+
+	/**
+	 * Reads every subsequence from the scanner and adds it to the tree.
+	 *
+	 * @param scanner scanner over the gbk file
+	 * @throws IOException if the file can not be read
+	 */
+	public void run(GbkScanner scanner) throws IOException {
+		long start = System.nanoTime();
+		bt.setConcurrent(true);
+		Thread[] threads = new Thread[writers];
+		for (int i = 0; i < writers; i++) {
+			threads[i] = new Thread(new Writer(), "btree-writer-" + i);
+			threads[i].start();
+		}
+		try {
+			long[] block = new long[BLOCK_KEYS];
+			int size = 0;
+			long key;
+			while (true) {
+				long readStart = System.nanoTime();
+				key = scanner.nextKey();
+				readNanos += System.nanoTime() - readStart;
+				if (key == -1L || failure != null) {
+					break;
+				}
+				block[size++] = key;
+				keys++;
+				if (size == BLOCK_KEYS) {
+					blocks.put(block);
+					block = new long[BLOCK_KEYS];
+					size = 0;
+				}
+			}
+			if (size > 0) {
+				long[] last = new long[size];
+				System.arraycopy(block, 0, last, 0, size);
+				blocks.put(last);
+			}
+			for (int i = 0; i < writers; i++) {
+				blocks.put(END);
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while inserting", e);
+		} finally {
+			bt.setConcurrent(false);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		totalNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Prints how long reading and inserting took.
+	 *
+	 * @param out stream to print to
+	 */
+	public void printTimings(PrintStream out) {
+		out.println("Writer threads: " + writers);
+		out.println("Subsequences inserted: " + keys);
+		out.println("Read time: " + readNanos / 1000000 + " ms");
+		out.println("Total time: " + totalNanos / 1000000 + " ms");
+	}
+
+	/**
+	 * Takes blocks of keys off the queue and inserts them until it gets
+	 * the end marker.
+	 */
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					long[] block = blocks.take();
+					if (block == END) {
+						return;
+					}
+					//after a failure keep taking blocks so the reader is not stuck on a full queue
+					if (failure != null) {
+						continue;
+					}
+					try {
+						for (long key : block) {
+							bt.insertConcurrent(key, 1);
+						}
+					} catch (RuntimeException e) {
+						failure = e;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
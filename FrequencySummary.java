@@ -0,0 +1,139 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Highest frequency found under each node of a BTree, kept in a small file
+ * next to the BTree file. BTree.topN uses it to skip whole subtrees whose
+ * highest frequency can not make it into the result, so only the parts of
+ * the tree holding frequent subsequences are read.
+ *
+ * The file starts with the length and last modified time of the BTree file
+ * it was made from, followed by one int per node slot. A summary whose BTree
+ * file has changed since is stale and is not used.
+ *
+ * @author Ben Peterson
+ */
+public class FrequencySummary {
+	private static final int MAGIC = 0x47424B53; //"GBKS"
+
+	//highest frequency under the node in each slot, indexed by file position / slot size
+	private int[] max;
+	private int slotSize;
+
+	private FrequencySummary(int slots, int slotSize) {
+		this.max = new int[slots];
+		this.slotSize = slotSize;
+	}
+
+	/**
+	 * Gets the file a summary of a BTree file is kept in.
+	 *
+	 * @param btreeFile BTree file
+	 * @return summary file next to it
+	 */
+	public static File fileFor(File btreeFile) {
+		return new File(btreeFile.getPath() + ".summary");
+	}
+
+	/**
+	 * Walks the whole tree and works out the highest frequency under
+	 * every node.
+	 *
+	 * @param bt tree to summarize, the cache must be written first
+	 * @return the summary
+	 */
+	public static FrequencySummary build(BTree bt) {
+		int slotSize = bt.store.pageSize();
+		FrequencySummary summary = new FrequencySummary((int) (bt.store.length() / slotSize), slotSize);
+		summary.fill(bt, bt.root);
+		return summary;
+	}
+
+	/**
+	 * Works out the highest frequency under a node and the nodes below it.
+	 */
+	private int fill(BTree bt, BTreeNode x) {
+		int best = 0;
+		//B+ tree internal nodes have no counters
+		for (int i = 0; x.freqs != null && i < x.n; i++) {
+			best = Math.max(best, x.freqs[i]);
+		}
+		if (!x.isLeaf) {
+			for (int i = 0; i <= x.n; i++) {
+				if (x.children[i] != -1L) {
+					best = Math.max(best, fill(bt, bt.diskRead(x.children[i])));
+				}
+			}
+		}
+		max[(int) (x.filePos / slotSize)] = best;
+		return best;
+	}
+
+	/**
+	 * Gets the highest frequency under the node at a file position.
+	 *
+	 * @param filePos file position of the node
+	 * @return highest frequency of a key in the node or below it
+	 */
+	public int max(long filePos) {
+		int slot = (int) (filePos / slotSize);
+		//a node added after the summary was made could hold anything
+		return slot < max.length ? max[slot] : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Saves the summary next to the BTree file.
+	 *
+	 * @param btreeFile BTree file the summary was made from
+	 * @throws IOException if the summary can not be written
+	 */
+	public void write(File btreeFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileFor(btreeFile))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(btreeFile.length());
+			out.writeLong(btreeFile.lastModified());
+			out.writeInt(slotSize);
+			out.writeInt(max.length);
+			for (int m : max) {
+				out.writeInt(m);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads the summary of a BTree file.
+	 *
+	 * @param btreeFile BTree file
+	 * @return the summary, null if there is none or the BTree file changed since it was made
+	 * @throws IOException if the summary can not be read
+	 */
+	public static FrequencySummary read(File btreeFile) throws IOException {
+		File file = fileFor(btreeFile);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readLong() != btreeFile.length() || in.readLong() != btreeFile.lastModified()) {
+				return null;
+			}
+			int slotSize = in.readInt();
+			FrequencySummary summary = new FrequencySummary(in.readInt(), slotSize);
+			for (int i = 0; i < summary.max.length; i++) {
+				summary.max[i] = in.readInt();
+			}
+			return summary;
+		} finally {
+			in.close();
+		}
+	}
+}
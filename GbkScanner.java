@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streams the subsequence keys out of a gbk file without building any
+ * Strings. The file is read as raw bytes, each base is turned into its
+ * 2 bit code through a lookup table, and the key for the current window
+ * of k bases is kept up to date with a shift and an or. An N clears the
+ * window, so no key ever covers an N.
+ *
+ * Sequences start on the line after the keyword ORIGIN and end at /.
+ * Keys come out in the same order and with the same value that
+ * BTree.sequenceToLong gives for each subsequence, the first base of a
+ * subsequence in the lowest 2 bits, or in the highest 2 bits for trees in
+ * lexicographic order. For canonical trees the key of the reverse
+ * complement is kept up to date next to it, from the other end, and the
+ * smaller of the two is handed out. Like the original String based parser
+ * the subsequence that ends on the last base of a sequence is not counted,
+ * a key is only handed out once the base after it has been read.
+ *
+ * @author Nick Figura
+ */
+public class GbkScanner {
+
+	//byte classes for the lookup table, 0-3 are the base codes
+	private static final byte SKIP = -1;
+	static final byte GAP = 4;
+	private static final byte END = 5;
+	private static final int EOF = -2;
+	private static final byte[] CODES = new byte[256];
+
+	static {
+		for (int i = 0; i < CODES.length; i++) {
+			CODES[i] = SKIP;
+		}
+		CODES['A'] = CODES['a'] = 0;
+		CODES['C'] = CODES['c'] = 1;
+		CODES['G'] = CODES['g'] = 2;
+		CODES['T'] = CODES['t'] = 3;
+		CODES['N'] = CODES['n'] = GAP;
+		CODES['/'] = END;
+	}
+
+	//where the scanner is in the file
+	private static final int HEADER = 0;
+	private static final int ORIGIN_LINE = 1;
+	private static final int SEQUENCE = 2;
+	private static final int SKIP_LINE = 3;
+	private static final byte[] ORIGIN = {'O', 'R', 'I', 'G', 'I', 'N'};
+
+	private InputStream in;
+	private byte[] buffer = new byte[1 << 16];
+	private int pos, limit;
+	private int state = HEADER;
+	private int matched; //characters of ORIGIN matched on this line, -1 if it can not match
+
+	private final int k;
+	private final int highShift;
+	private final boolean lexOrder;
+	private final boolean canonical;
+	private final long mask;
+	private long window; //key of the last k bases
+	private long reverse; //key of the reverse complement of the last k bases
+	private int valid; //bases read since the last N or the start of the sequence
+	private boolean pending; //window holds a full key that has not been handed out
+
+	/**
+	 * Creates a scanner over a gbk file.
+	 *
+	 * @param in stream holding the gbk file
+	 * @param k subsequence length, 1-31
+	 */
+	public GbkScanner(InputStream in, int k) {
+		this(in, k, false);
+	}
+
+	/**
+	 * Creates a scanner over a gbk file.
+	 *
+	 * @param in stream holding the gbk file
+	 * @param k subsequence length, 1-31
+	 * @param lexOrder true to put the first base of a subsequence in the highest bits
+	 */
+	public GbkScanner(InputStream in, int k, boolean lexOrder) {
+		this(in, k, lexOrder, false);
+	}
+
+	/**
+	 * Creates a scanner over a gbk file.
+	 *
+	 * @param in stream holding the gbk file
+	 * @param k subsequence length, 1-31
+	 * @param lexOrder true to put the first base of a subsequence in the highest bits
+	 * @param canonical true to hand out the smaller of the keys of a subsequence and its reverse complement
+	 */
+	public GbkScanner(InputStream in, int k, boolean lexOrder, boolean canonical) {
+		this.in = in;
+		this.k = k;
+		this.highShift = 2 * (k - 1);
+		this.lexOrder = lexOrder;
+		this.canonical = canonical;
+		this.mask = (1L << (2 * k)) - 1;
+	}
+
+	/**
+	 * Gets the key of the next subsequence in the file.
+	 *
+	 * @return next key, -1 at the end of the file
+	 * @throws IOException if the file can not be read
+	 */
+	public long nextKey() throws IOException {
+		while (true) {
+			int code = nextCode();
+			if (code == EOF) {
+				return -1L;
+			}
+			if (code == END) {
+				pending = false;
+				continue;
+			}
+			//the last window is complete now that another base follows it
+			boolean emit = pending;
+			long key = canonical ? Math.min(window, reverse) : window;
+			if (code == GAP) {
+				valid = 0;
+			}
+			else {
+				//the complement of a base is its code xor 3, it goes in at the other end
+				if (lexOrder) {
+					window = ((window << 2) | code) & mask;
+					reverse = (reverse >>> 2) | ((long) (code ^ 3) << highShift);
+				}
+				else {
+					window = (window >>> 2) | ((long) code << highShift);
+					reverse = ((reverse << 2) | (code ^ 3)) & mask;
+				}
+				valid++;
+			}
+			pending = valid >= k;
+			if (emit) {
+				return key;
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole next sequence of the file. Each base is stored as
+	 * its 2 bit code, an N is stored as 4.
+	 *
+	 * @return codes of the next sequence, null at the end of the file
+	 * @throws IOException if the file can not be read
+	 */
+	public byte[] nextSequence() throws IOException {
+		byte[] codes = new byte[1 << 12];
+		int length = 0;
+		int code = nextCode();
+		if (code == EOF) {
+			return null;
+		}
+		while (code != END && code != EOF) {
+			if (length == codes.length) {
+				codes = Arrays.copyOf(codes, codes.length * 2);
+			}
+			codes[length++] = (byte) code;
+			code = nextCode();
+		}
+		return Arrays.copyOf(codes, length);
+	}
+
+	/**
+	 * Reads up to the next base of a sequence, skipping everything that
+	 * is not part of a sequence.
+	 *
+	 * @return base code 0-3, GAP for an N, END at the end of a sequence, EOF at the end of the file
+	 */
+	private int nextCode() throws IOException {
+		while (true) {
+			if (pos == limit) {
+				limit = in.read(buffer, 0, buffer.length);
+				pos = 0;
+				if (limit <= 0) {
+					limit = 0;
+					//a sequence cut off by the end of the file still ends
+					if (state == SEQUENCE) {
+						state = HEADER;
+						return END;
+					}
+					return EOF;
+				}
+			}
+			int b = buffer[pos++] & 0xff;
+			switch (state) {
+			case SEQUENCE:
+				byte code = CODES[b];
+				if (code == SKIP) {
+					continue;
+				}
+				if (code == END) {
+					state = SKIP_LINE;
+				}
+				return code;
+			case HEADER:
+				if (b == '\n' || b == '\r') {
+					matched = 0;
+				}
+				else if (matched >= 0) {
+					if (b == ORIGIN[matched]) {
+						matched++;
+						if (matched == ORIGIN.length) {
+							state = ORIGIN_LINE;
+						}
+					}
+					else {
+						matched = -1;
+					}
+				}
+				break;
+			case ORIGIN_LINE:
+				if (b == '\n' || b == '\r') {
+					window = 0;
+					reverse = 0;
+					valid = 0;
+					pending = false;
+					state = SEQUENCE;
+				}
+				break;
+			case SKIP_LINE:
+				if (b == '\n' || b == '\r') {
+					matched = 0;
+					state = HEADER;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Closes the gbk file.
+	 *
+	 * @throws IOException if the file can not be closed
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -1,8 +1,9 @@
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -18,12 +19,26 @@ public class GeneBankCreateBTree{
 	static int cacheFlag, degreeArg, sequenceSize, cacheSize, debugArg;
 	static String gbkFilename;
 	static Cache cache;
+	static boolean bulkLoad;
+	static int sortBufferSize = BTreeBulkLoader.DEFAULT_RUN_SIZE;
+	static int aggregateMB;
+	static int threads;
+	static int writers;
+	static String appendFilename;
+	static int pinLevels;
+	static int pageCacheMB;
+	static int treeFlags;
+	static boolean metricsFlag;
+	static String metricsJson;
+	static boolean writeSummary;
+	static double bloomFpp;
+	static int prefetchWindow;
 	
 	/**
 	 * Main for GeneBankCreateBTree. Creates a Btree from 
 	 * passed in gbk file. Commandline usage is as follows:
 	 * 
-	 * java GeneBankCreateBTree <cache 0/1> <degree> <gbk file> <sequence length> <cache size> [<debug level>]
+	 * java GeneBankCreateBTree <cache 0/1> <degree> <gbk file> <sequence length> <cache size> [<debug level>] [options]
 	 * 
 	 * @param args Commmand line arguments
 	 */
@@ -32,51 +47,103 @@ public class GeneBankCreateBTree{
 		parseArgs(args);
 		
 		try {
-			//read in file and create BTree
+			//read in file and create BTree, or open the one that is added to
 			File gbkFile = new File(gbkFilename);
-			BufferedReader gbkInput = new BufferedReader(new FileReader(gbkFile));		
-			BTree bt = new BTree(degreeArg, sequenceSize, gbkFilename, cache);			
-			StringBuilder fullSequence = new StringBuilder("Start");
+			BTree bt;
+			if (appendFilename != null) {
+				bt = BTree.openForAppend(new File(appendFilename), cache);
+				if (bt.getSequenceLength() != sequenceSize || (degreeArg != 0 && bt.getDegree() != degreeArg)) {
+					System.err.println(appendFilename + " has degree " + bt.getDegree() + " and sequence length " 
+							+ bt.getSequenceLength() + ", not " + degreeArg + " and " + sequenceSize);
+					bt.close();
+					System.exit(1);
+				}
+				degreeArg = bt.getDegree();
+			}
+			else {
+				bt = BTree.create(degreeArg, sequenceSize, gbkFilename, cache, treeFlags);
+			}
+			if (pinLevels > 0) bt.setPinnedLevels(pinLevels);
+			if (pageCacheMB > 0) bt.setPageCache(pageCacheMB * 1024L * 1024L);
+			BTreeMetrics metrics = null;
+			if (metricsFlag) {
+				metrics = new BTreeMetrics();
+				bt.setMetrics(metrics);
+				metrics.register(bt.BtreeFile.getName());
+			}
+			//a gzip compressed file is decompressed on its own thread while it is scanned
+			InputStream gbkStream = GzipPipeline.open(gbkFile);
+			GbkScanner gbkInput = new GbkScanner(gbkStream, sequenceSize, bt.isLexOrder(), bt.isCanonical());
+			BTreeBulkLoader loader = null;
+			if (bulkLoad) loader = new BTreeBulkLoader(bt, sortBufferSize);
+			KmerCounter counter = null;
+			if (aggregateMB > 0) counter = new KmerCounter(aggregateMB * 1024L * 1024L);
+			
+			ParallelIngest parallel = null;
+			if (threads > 0) {
+				parallel = new ParallelIngest(bt, threads);
+				parallel.run(gbkInput);
+			}
+			ConcurrentIngest concurrent = null;
+			if (writers > 0) {
+				concurrent = new ConcurrentIngest(bt, writers);
+				concurrent.run(gbkInput);
+			}
 			
-			//while loop for multiple sequences per file
-			while (fullSequence != null) { 
-				fullSequence = parseGbkFile(gbkInput);
-				if (fullSequence != null) {
-					int seqLength = sequenceSize;
-					int endOfSubseq = fullSequence.length() - seqLength;
-					String subSequence;
-					long convertedSequence;
-					for (int i = 0; i < endOfSubseq; i++) {	
-						subSequence = fullSequence.substring(i, i + seqLength);
-						if (subSequence.contains("N")) {
-							subSequence = null;
-						}
-						else {
-							convertedSequence = bt.sequenceToLong(subSequence);
-							bt.insert(convertedSequence);
-						}
-					}
+			//the scanner hands out the key of every subsequence in every sequence of the file
+			long convertedSequence;
+			while (parallel == null && concurrent == null && (convertedSequence = gbkInput.nextKey()) != -1L) {
+				if (loader != null) loader.add(convertedSequence);
+				else if (counter != null) {
+					counter.add(convertedSequence);
+					if (counter.isFull()) counter.flush(bt);
 				}
+				else bt.insert(convertedSequence);
 			}
 			gbkInput.close();
+			if (loader != null) loader.finish();
+			if (counter != null) counter.flush(bt);
 			
 			//the cache needs to be written at the end so that any 
 			//updates to nodes and their keys/children are written to disk
 			if (cacheFlag == 1) bt.writeCache();
+			//the summary is saved once the tree is closed, it records the final state of the file
+			FrequencySummary summary = writeSummary ? FrequencySummary.build(bt) : null;
+			BloomFilter bloom = bloomFpp > 0 ? BloomFilter.build(bt, bloomFpp) : null;
 			
 			if(debugArg == 0 || debugArg == 1){
-				System.out.println("The B-Tree was created successfully!");
-				System.out.println("The following files were created.");
+				if(appendFilename != null) {
+					System.out.println("The subsequences were added to the B-Tree successfully!");
+					System.out.println("The following file was updated.");
+				}else {
+					System.out.println("The B-Tree was created successfully!");
+					System.out.println("The following file was created.");
+				}
 				if(cacheFlag==1){
 					System.out.println("Cache Enabled: yes");
 					System.out.println("Cache size: " + cacheSize);
 				}else{
 					System.out.println("Cache Enabled: no");
 				}
+				if(bulkLoad) System.out.println("Bulk Load: yes");
+				if(aggregateMB > 0) System.out.println("Aggregation memory: " + aggregateMB + " MB");
+				if(gbkStream instanceof GzipPipeline) {
+					System.out.println("Input: gzip, " + ((GzipPipeline) gbkStream).getWaitNanos() / 1000000 
+							+ " ms waiting for decompression");
+				}
+				if(parallel != null) parallel.printTimings(System.out);
+				if(concurrent != null) concurrent.printTimings(System.out);
+				if(bt.isLexOrder()) System.out.println("Key order: lexicographic");
+				if(bt.isCanonical()) System.out.println("Keys: canonical (reverse complements counted together)");
+				if(bloom != null) {
+					System.out.println("Bloom filter: " + bloom.count() + " keys, " + bloom.sizeInBytes() / 1024 
+							+ " KB, false positive rate " + bloomFpp);
+				}
+				if(bt instanceof BPlusTree) System.out.println("Tree: B+ tree");
 				System.out.println("Sequence Length: " + sequenceSize);
 				System.out.println("Debug Level: " + debugArg);
-				System.out.println("Metadata file: " + gbkFilename + ".btree.metadata." + sequenceSize  + "." + degreeArg);
-				System.out.println("B-Tree binary file: "  + gbkFilename + ".btree.data." + sequenceSize  + "." + degreeArg);
+				if(appendFilename != null) System.out.println("B-Tree binary file: " + appendFilename);
+				else System.out.println("B-Tree binary file: "  + gbkFilename + ".btree.data." + sequenceSize  + "." + degreeArg);
 			}
 
 			if (debugArg == 1) {
@@ -87,11 +154,24 @@ public class GeneBankCreateBTree{
 				PrintStream console = System.out;
 				//change output to file
 				System.setOut(fileOutput);
-				bt.print(bt.root, true);
+				if (prefetchWindow > 0) {
+					NodePrefetcher prefetcher = new NodePrefetcher(bt, prefetchWindow);
+					bt.print(prefetcher);
+					prefetcher.close();
+				}
+				else bt.print(bt.root, true);
 				//restore output
 				System.setOut(console);
 				System.out.println("Done!");
 			}	
+			if (metrics != null) {
+				metrics.printSummary(System.out);
+				if (metricsJson != null) metrics.writeJson(new File(metricsJson));
+				metrics.unregister();
+			}
+			bt.close();
+			if (summary != null) summary.write(bt.BtreeFile);
+			if (bloom != null) bloom.write(bt.BtreeFile);
 			System.out.println("");
 
 		} catch (IOException e) {
@@ -110,6 +190,7 @@ public class GeneBankCreateBTree{
 	 * @param args Arguements from the command line
 	 */
 	private static void parseArgs(String args[]) {
+		args = parseOptions(args);
 		if(args.length < 4 || args.length > 6){
 			printUsage();
 		} 
@@ -118,7 +199,9 @@ public class GeneBankCreateBTree{
 			cacheFlag = Integer.parseInt(args[0]);
 			if(cacheFlag == 1) {
 				cacheSize = Integer.parseInt(args[4]);
-				cache = new Cache(cacheSize);
+				//writer threads share a cache that is locked in stripes
+				if(writers > 0) cache = new StripedCache(cacheSize, writers * 4);
+				else cache = new Cache(cacheSize);
 			}else if(cacheFlag == 0) {
 				cache = null;
 			}else {
@@ -127,17 +210,21 @@ public class GeneBankCreateBTree{
 			}			
 			
 			degreeArg = Integer.parseInt(args[1]);
-			//if the degree arg is 0 configure the degree so that each node fits within a memory block of size 4096
-			//each node has (2*t-1)*(8+4) + (2*t)*8 + 4 + 4 + 8 bytes
-			//(2*t-t)*(8+4) + (2*t)*8 + 4 + 4 + 8 = 4096 => t = 145
-			if(degreeArg == 0) degreeArg = 145;
-			else if(degreeArg < 2) printUsage();			
+			if(degreeArg != 0 && degreeArg < 2) printUsage();			
 			
 			gbkFilename = args[2];
 			
 			sequenceSize = Integer.parseInt(args[3]);
 			if(sequenceSize < 1 || sequenceSize > 31) 
 				printUsage();
+			
+			//if the degree arg is 0 configure the degree so that each node fits within a slot of size 4096
+			//each node has (2*t-1)*(8+4) + (2*t)*8 + 4 + 1 + 8 bytes, which is at most 4096 for t = 102
+			//compressed and B+ tree nodes have their own sizes, so the degree is worked out from the layout
+			//a tree that is added to keeps its own degree
+			if(degreeArg == 0 && appendFilename == null) {
+				degreeArg = BTree.degreeFor(4096, sequenceSize, treeFlags);
+			}
 
 			if (args.length > 5) debugArg = Integer.parseInt(args[5]);
 			else debugArg = 0;
@@ -148,70 +235,129 @@ public class GeneBankCreateBTree{
 	}
 	
 	/**
-	 * Reads the next gene sequence from the file and places it in a string.
-	 * Sequences starts follow the keyword ORIGIN and end at //.
+	 * Pulls the optional --name [value] arguments out of the command line
+	 * and stores them. The remaining positional arguments are returned.
 	 * 
-	 * @param gbkInput Buffered reader for the gbk file
-	 * @return next gene sequence in the file
+	 * @param args Arguements from the command line
+	 * @return positional arguments
 	 */
-	private static StringBuilder parseGbkFile(BufferedReader gbkInput) {		
-		String dnaSequence = null;
-		StringBuilder fullSequence = null;
-				
+	private static String[] parseOptions(String args[]) {
+		List<String> positional = new ArrayList<String>();
 		try {
-			
-			do{
-				dnaSequence = gbkInput.readLine();
-			}while(dnaSequence != null && !dnaSequence.startsWith("ORIGIN"));
-			
-			if (dnaSequence == null)
-				return fullSequence;
-			
-			char token = 0;
-			fullSequence = new StringBuilder();
-			while(token != '/'){
-				token = (char) gbkInput.read();
-				token = Character.toUpperCase(token);
-
-				switch(token){
-				case 'A':
-					fullSequence.append(Character.toString(token));
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--bulk":
+					bulkLoad = true;
+					break;
+				case "--sort-buffer":
+					sortBufferSize = Integer.parseInt(args[++i]);
+					if (sortBufferSize < 1) printUsage();
 					break;
-				case 'T':
-					fullSequence.append(Character.toString(token));
+				case "--aggregate":
+					aggregateMB = Integer.parseInt(args[++i]);
+					if (aggregateMB < 1) printUsage();
 					break;
-				case 'C':
-					fullSequence.append(Character.toString(token));;
+				case "--lex":
+					treeFlags |= BTree.LEX_ORDER;
 					break;
-				case 'G':
-					fullSequence.append(Character.toString(token));
+				case "--bplus":
+					treeFlags |= BTree.BPLUS;
 					break;
-				case 'N':
-					fullSequence.append(Character.toString(token));
+				case "--pin-levels":
+					pinLevels = Integer.parseInt(args[++i]);
+					if (pinLevels < 1) printUsage();
 					break;
+				case "--page-cache":
+					pageCacheMB = Integer.parseInt(args[++i]);
+					if (pageCacheMB < 1) printUsage();
+					break;
+				case "--append":
+					appendFilename = args[++i];
+					break;
+				case "--writers":
+					writers = Integer.parseInt(args[++i]);
+					if (writers < 1) printUsage();
+					break;
+				case "--compress":
+					treeFlags |= BTree.COMPRESSED;
+					break;
+				case "--canonical":
+					treeFlags |= BTree.CANONICAL;
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					if (threads < 1) printUsage();
+					break;
+				case "--summary":
+					writeSummary = true;
+					break;
+				case "--bloom":
+					bloomFpp = Double.parseDouble(args[++i]);
+					if (!(bloomFpp > 0 && bloomFpp < 1)) printUsage();
+					break;
+				case "--prefetch":
+					prefetchWindow = Integer.parseInt(args[++i]);
+					if (prefetchWindow < 1) printUsage();
+					break;
+				case "--metrics":
+					metricsFlag = true;
+					break;
+				case "--metrics-json":
+					metricsJson = args[++i];
+					metricsFlag = true;
+					break;
+				default:
+					if (args[i].startsWith("--")) printUsage();
+					positional.add(args[i]);
 				}
-			}	
-			
-		} catch (IOException e) {
-			System.err.print("Invalid File");
-			e.printStackTrace();
-		}		
-		return fullSequence;
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			printUsage();
+		}
+		//the bulk loader already collapses repeated subsequences
+		if (bulkLoad && aggregateMB > 0) printUsage();
+		//the bulk loader only builds the BTree layout
+		if (bulkLoad && (treeFlags & BTree.BPLUS) != 0) printUsage();
+		//the worker threads do their own counting and write through insertBatch
+		if (threads > 0 && (bulkLoad || aggregateMB > 0)) printUsage();
+		//the format of a tree that is added to comes from its superblock, and the bulk loader only builds new trees
+		if (appendFilename != null && (bulkLoad || treeFlags != 0)) printUsage();
+		//concurrent inserts go through the BTree insert path only
+		if (writers > 0 && (bulkLoad || aggregateMB > 0 || threads > 0 || (treeFlags & BTree.BPLUS) != 0)) printUsage();
+		return positional.toArray(new String[positional.size()]);
 	}
-
+	
 	/**
 	 * Prints the usage statement for the program. This is called when the passed
 	 * in parameters are incorrect. 
 	 */
 	private static void printUsage()
 	{
-		System.err.println("Usage: Java GeneBankCreateBTree <cache 0/1> <degree> <gbk file> <sequence length> <cache size> [<debug level>]");
+		System.err.println("Usage: Java GeneBankCreateBTree <cache 0/1> <degree> <gbk file> <sequence length> <cache size> [<debug level>] [options]");
 		System.err.println("<cache>: 0 for no cache or 1 to use a cache");
-		System.err.println("<degree>: Degree of Btree, 0 will default to a block size of 4096");
+		System.err.println("<degree>: Degree of Btree, 0 picks the largest degree whose nodes fit in a 4096 byte slot");
 		System.err.println("<gbk file>: file with sequences saved to it");
 		System.err.println("<sequence length>: length of subsequences allowed values are 1-31");
 		System.err.println("<Cache Size>: If cache is enabled this will be the size desired by the user");
 		System.err.println("[<Debug Level>]: 0 for helpful diagnostics, 1 to dump information to a file ");
+		System.err.println("Options:");
+		System.err.println("--bulk: sort all subsequences first and write the BTree bottom up in one pass");
+		System.err.println("--sort-buffer <n>: number of subsequences sorted in memory at a time by --bulk");
+		System.err.println("--aggregate <MB>: count repeated subsequences in memory and insert them in sorted batches, not with --bulk");
+		System.err.println("--lex: store keys so numeric order is the same as alphabetical order of the subsequences");
+		System.err.println("--bplus: build a B+ tree, counts only in linked leaves, not with --bulk");
+		System.err.println("--compress: write nodes with delta packed keys, varint counts and page number children");
+		System.err.println("--canonical: count each subsequence together with its reverse complement, under the smaller of their keys");
+		System.err.println("--threads <n>: encode and count subsequences on n worker threads, not with --bulk or --aggregate");
+		System.err.println("--pin-levels <n>: keep the nodes of the top n levels of the BTree on the heap, outside of the cache");
+		System.err.println("--page-cache <MB>: keep raw copies of recently used pages in this much memory outside of the heap");
+		System.err.println("--append <btree data file>: add the subsequences to an existing BTree, degree 0 keeps its degree, not with --bulk or the format options");
+		System.err.println("--writers <n>: insert subsequences from n threads at once, not with --bulk, --aggregate, --threads or --bplus");
+		System.err.println("--summary: save the highest frequency under each node next to the BTree file for GeneBankSearch --top");
+		System.err.println("--bloom <rate>: save a Bloom filter of the keys with this false positive rate (such as 0.01) next to the BTree file for GeneBankSearch --bloom");
+		System.err.println("--prefetch <n>: write the debug dump with a cursor that reads the next n children of a node ahead in the background");
+		System.err.println("--metrics: count node reads, writes, cache hits, splits and insert times, print them at the end and show them over JMX");
+		System.err.println("--metrics-json <file>: like --metrics and also write the counts to a JSON file");
 		System.exit(1);
 	}
 
@@ -1,26 +1,55 @@
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Searches a provides gene sequence file for a certain set of sequences. 
- * The sequences are then prnted to the console if found.
+ * Each sequence is printed to the console with the number of times it 
+ * was found, 0 if it is not in the file.
  * 
  * @author Ben Mcavoy, Nick Figura
  */
 public class GeneBankSearch {
 	
-	static int cacheCapacity, metaSeqLength, debugLevel, cacheSize;
+	static int metaSeqLength, debugLevel, cacheSize;
 	static String btreeFileName, queryFileName, metadataFileName;
 	static long searchedKey;
 	static Cache cache;
 	static BTree bt;
+	//number of query lines looked up together
+	static final int QUERY_BATCH = 1 << 20;
+	static boolean prefixSearch;
+	static int threads = 1;
+	static int pinLevels;
+	static int pageCacheMB;
+	static int topN;
+	static boolean useSummary;
+	static int prefetchWindow;
+	static NodePrefetcher prefetcher;
+	static boolean mapFile;
+	static MappedTree mapped;
+	static boolean useBloom;
+	static BloomFilter bloom;
+	static boolean metricsFlag;
+	static String metricsJson;
+	static BTreeMetrics metrics;
 
 	/**
 	 * Main entery point for GeneBankSearch. Command line arguments are:
 	 * GeneBankSearch <0/1 with/without Cache> <btree file> <query file> <Cache Size> [<debug level>]
+	 * With --top n there is no query file and the n most frequent subsequences are listed.
 	 *
 	 * @param args command line arguements
 	 */
@@ -29,35 +58,385 @@ public class GeneBankSearch {
 		parseArgs(args);
 		//setup BTree for search
 		try {		
-			BTree bt = new BTree(new File(btreeFileName), new File(metadataFileName), cache);
+			BTree bt = BTree.open(new File(btreeFileName), new File(metadataFileName), cache);
+			metaSeqLength = bt.getSequenceLength();
+			if(pinLevels > 0) bt.setPinnedLevels(pinLevels);
+			if(pageCacheMB > 0) bt.setPageCache(pageCacheMB * 1024L * 1024L);
+			if(metricsFlag) {
+				metrics = new BTreeMetrics();
+				bt.setMetrics(metrics);
+				metrics.register(new File(btreeFileName).getName());
+			}
 
 			if(debugLevel == 0){
 				System.out.println("Btree File:" + btreeFileName);
-				System.out.println("Metadata File:" + metadataFileName);
-				System.out.println("Query File:" + queryFileName);
+				if(bt.superblock == null) System.out.println("Metadata File:" + metadataFileName);
+				if(topN == 0) System.out.println("Query File:" + queryFileName);
 				if(debugLevel == 1) System.out.println("Debug Level : " + debugLevel);
 				System.out.println();
 			}
-			//search for gene subsequences
-			Scanner queryScanner = new Scanner(new File(queryFileName));
-			String curLine = "";
-			do{				
-				curLine = queryScanner.nextLine();
-				long k = bt.sequenceToLong(curLine);
-				BTreeNode searchKey = bt.search(bt.root, k);
-				
-				if(searchKey == null) return;
-				for(int i = 0; i < searchKey.keys.length; i++){
-					if(searchKey.keys[i].key == k){
-						System.out.println(bt.longToSequence(k, metaSeqLength) + " " + searchKey.keys[i].freq);
-					}
-				}				
-			}while(queryScanner.hasNextLine());	
+			if(mapFile) mapped = new MappedTree(bt);
+			if(useBloom) bloom = loadBloom(bt);
+			if(prefetchWindow > 0) prefetcher = new NodePrefetcher(bt, prefetchWindow);
+			if(topN > 0) {
+				listTop(bt);
+				if(prefetcher != null) prefetcher.close();
+				bt.close();
+				return;
+			}
+			//search for gene subsequences, a batch of queries at a time
+			ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+			BufferedReader queryInput = new BufferedReader(new FileReader(queryFileName));
+			List<String> queries = new ArrayList<String>();
+			String curLine;
+			while((curLine = queryInput.readLine()) != null) {
+				curLine = curLine.trim();
+				if(curLine.isEmpty()) continue;
+				queries.add(curLine);
+				if(queries.size() == QUERY_BATCH) {
+					search(bt, queries, pool);
+					queries.clear();
+				}
+			}
+			search(bt, queries, pool);
+			queryInput.close();
+			if(pool != null) pool.shutdown();
+			if(prefetcher != null) prefetcher.close();
+			if(metrics != null) {
+				//the results are on standard output, keep them apart from the counts
+				metrics.printSummary(System.err);
+				if(metricsJson != null) metrics.writeJson(new File(metricsJson));
+				metrics.unregister();
+			}
+			bt.close();
 
 		}catch(FileNotFoundException e){
 			e.printStackTrace();
 		}catch (IOException e) {
 			e.printStackTrace();
+		}catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Maps the Bloom filter next to the BTree file. If it is missing or
+	 * stale a new one is made at the default false positive rate and saved.
+	 *
+	 * @param bt tree being searched
+	 * @return the filter
+	 * @throws IOException if the filter can not be read or written
+	 */
+	private static BloomFilter loadBloom(BTree bt) throws IOException {
+		BloomFilter filter = BloomFilter.read(bt.BtreeFile);
+		if(filter == null) {
+			filter = BloomFilter.build(bt, BloomFilter.DEFAULT_FPP);
+			filter.write(bt.BtreeFile);
+		}
+		return filter;
+	}
+
+	/**
+	 * Prints the most frequent subsequences of the tree, the most frequent
+	 * first. With --summary the frequency summary next to the BTree file is
+	 * used to skip subtrees, and it is made first if it is missing or stale.
+	 * 
+	 * @param bt tree to search
+	 * @throws IOException if the summary can not be read or written
+	 */
+	private static void listTop(BTree bt) throws IOException {
+		FrequencySummary summary = null;
+		if(useSummary) {
+			summary = FrequencySummary.read(bt.BtreeFile);
+			if(summary == null) {
+				summary = FrequencySummary.build(bt);
+				summary.write(bt.BtreeFile);
+			}
+		}
+		long start = System.nanoTime();
+		List<TreeObject> top = bt.topN(topN, summary, prefetcher);
+		if(metrics != null) metrics.recordSearches(System.nanoTime() - start, 1);
+		StringBuilder output = new StringBuilder();
+		for(TreeObject o : top) {
+			output.append(bt.longToSequence(o.key, metaSeqLength)).append(' ').append(o.freq).append('\n');
+		}
+		System.out.print(output);
+		if(metrics != null) {
+			metrics.printSummary(System.err);
+			if(metricsJson != null) metrics.writeJson(new File(metricsJson));
+			metrics.unregister();
+		}
+	}
+
+	/**
+	 * Searches one batch of query lines and prints the results in the 
+	 * order of the lines. With a pool the batch is split into one shard 
+	 * per thread, the shards are searched at the same time and their 
+	 * output is printed shard by shard.
+	 * 
+	 * @param bt tree to search
+	 * @param queries query lines of the batch
+	 * @param pool worker threads, null to search on the calling thread
+	 * @throws InterruptedException if the search is interrupted
+	 * @throws ExecutionException if a worker fails
+	 */
+	private static void search(final BTree bt, List<String> queries, ExecutorService pool) 
+			throws InterruptedException, ExecutionException {
+		if(pool == null) {
+			System.out.print(searchShard(bt, queries));
+			return;
+		}
+		List<Future<String>> shards = new ArrayList<Future<String>>();
+		int shardSize = (queries.size() + threads - 1) / threads;
+		for(int from = 0; from < queries.size(); from += shardSize) {
+			final List<String> shard = queries.subList(from, Math.min(from + shardSize, queries.size()));
+			shards.add(pool.submit(new Callable<String>() {
+				public String call() {
+					return searchShard(bt, shard);
+				}
+			}));
+		}
+		for(Future<String> shard : shards) {
+			System.out.print(shard.get());
+		}
+	}
+
+	/**
+	 * Searches a list of query lines, as subsequences or as prefixes.
+	 * 
+	 * @param bt tree to search
+	 * @param queries query lines
+	 * @return output for the lines, in the same order
+	 */
+	private static String searchShard(BTree bt, List<String> queries) {
+		if(!prefixSearch) {
+			return searchBatch(bt, queries);
+		}
+		if(bt.isCanonical()) {
+			//one walk of the tree answers every prefix of the shard
+			return searchCanonicalPrefixes(bt, queries);
+		}
+		StringBuilder output = new StringBuilder();
+		for(String prefix : queries) {
+			output.append(searchPrefix(bt, prefix));
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Looks up a batch of queries with one walk down the tree and lists 
+	 * the frequency of each one in the order of the query file. Queries 
+	 * that are not in the tree are listed with a frequency of 0. In a 
+	 * canonical tree a query is looked up under its canonical key, so it 
+	 * gets the count of itself and its reverse complement together.
+	 * 
+	 * @param bt tree to search
+	 * @param queries subsequences to look up
+	 * @return one line per query with the subsequence and its frequency
+	 */
+	private static String searchBatch(BTree bt, List<String> queries) {
+		long[] keys = new long[queries.size()];
+		long[] lookup = new long[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = bt.sequenceToLong(queries.get(i));
+			lookup[i] = bt.canonicalKey(keys[i]);
+		}
+		//look up each distinct key once, in sorted order
+		long[] sorted = lookup.clone();
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for(int i = 0; i < sorted.length; i++) {
+			if(distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+				sorted[distinct++] = sorted[i];
+			}
+		}
+		sorted = Arrays.copyOf(sorted, distinct);
+		long start = System.nanoTime();
+		//keys the Bloom filter rules out are counted 0 without a look at the tree
+		long[] candidates = sorted;
+		if(bloom != null) {
+			candidates = new long[distinct];
+			int kept = 0;
+			for(int i = 0; i < distinct; i++) {
+				if(bloom.mightContain(sorted[i])) candidates[kept++] = sorted[i];
+			}
+			if(metrics != null) metrics.bloomRejects.add(distinct - kept);
+			candidates = Arrays.copyOf(candidates, kept);
+		}
+		int[] found;
+		if(mapped != null) {
+			//each key is found in place in the mapped file
+			found = new int[candidates.length];
+			for(int i = 0; i < candidates.length; i++) {
+				found[i] = mapped.lookup(candidates[i]);
+			}
+		}else {
+			found = bt.lookupAll(candidates);
+		}
+		int[] counts = found;
+		if(candidates != sorted) {
+			counts = new int[distinct];
+			for(int i = 0, j = 0; i < candidates.length; i++) {
+				while(sorted[j] != candidates[i]) j++;
+				counts[j] = found[i];
+			}
+		}
+		if(metrics != null) metrics.recordSearches(System.nanoTime() - start, distinct);
+		
+		StringBuilder output = new StringBuilder();
+		for(int i = 0; i < keys.length; i++) {
+			int freq = counts[Arrays.binarySearch(sorted, lookup[i])];
+			output.append(bt.longToSequence(keys[i], metaSeqLength)).append(' ').append(freq).append('\n');
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Lists every subsequence in the tree that starts with the prefix, 
+	 * with its frequency. In a tree with lexicographic key order these 
+	 * keys form one range that the cursor walks. Otherwise the first bases
+	 * are in the low bits of the key and every key has to be checked.
+	 * 
+	 * @param bt tree to search
+	 * @param prefix first bases of the subsequences to list
+	 * @return one line per subsequence with its frequency
+	 */
+	private static String searchPrefix(BTree bt, String prefix) {
+		long start = System.nanoTime();
+		StringBuilder output = new StringBuilder();
+		if(bt.isLexOrder()) {
+			long[] range = bt.prefixRange(prefix);
+			BTreeCursor cursor = bt.cursor(range[0], prefetcher);
+			while(cursor.next() && cursor.key() < range[1]) {
+				output.append(bt.longToSequence(cursor.key(), metaSeqLength)).append(' ').append(cursor.freq()).append('\n');
+			}
+			//the cursor stops at the end of the range with reads still queued past it
+			cursor.close();
+		}else {
+			long p = bt.sequenceToLong(prefix);
+			long mask = (1L << (2 * prefix.length())) - 1;
+			BTreeCursor cursor = bt.cursor(0L, prefetcher);
+			while(cursor.next()) {
+				if((cursor.key() & mask) == p) {
+					output.append(bt.longToSequence(cursor.key(), metaSeqLength)).append(' ').append(cursor.freq()).append('\n');
+				}
+			}
+		}
+		if(metrics != null) metrics.recordSearches(System.nanoTime() - start, 1);
+		return output.toString();
+	}
+
+	/**
+	 * Lists the subsequences that start with each of a list of prefixes in
+	 * a canonical tree. A subsequence is stored under its reverse 
+	 * complement when that has the smaller key, so the subsequences with a
+	 * prefix are not one range even in lexicographic key order. The tree 
+	 * is walked once for all of the prefixes, and every stored key and its
+	 * reverse complement are looked up among the prefixes of each length 
+	 * that was asked for. Each match is listed with the count it shares 
+	 * with its reverse complement.
+	 * 
+	 * @param bt canonical tree to search
+	 * @param prefixes first bases of the subsequences to list, one per query line
+	 * @return for each prefix in order, one line per subsequence with its frequency, in key order
+	 */
+	static String searchCanonicalPrefixes(BTree bt, List<String> prefixes) {
+		long start = System.nanoTime();
+		int k = bt.getSequenceLength();
+		//the prefixes by length and key, a prefix asked for twice shares its matches
+		List<Integer> lengths = new ArrayList<Integer>();
+		List<Map<Long, PrefixMatches>> wanted = new ArrayList<Map<Long, PrefixMatches>>();
+		PrefixMatches[] perQuery = new PrefixMatches[prefixes.size()];
+		for(int i = 0; i < perQuery.length; i++) {
+			String prefix = prefixes.get(i);
+			if(prefix.length() > k) {
+				perQuery[i] = new PrefixMatches();
+				continue;
+			}
+			int j = lengths.indexOf(prefix.length());
+			if(j < 0) {
+				j = lengths.size();
+				lengths.add(prefix.length());
+				wanted.add(new HashMap<Long, PrefixMatches>());
+			}
+			long p = bt.sequenceToLong(prefix);
+			perQuery[i] = wanted.get(j).get(p);
+			if(perQuery[i] == null) {
+				perQuery[i] = new PrefixMatches();
+				wanted.get(j).put(p, perQuery[i]);
+			}
+		}
+
+		if(!lengths.isEmpty()) {
+			BTreeCursor cursor = bt.cursor(0L, prefetcher);
+			while(cursor.next()) {
+				long key = cursor.key();
+				long rc = bt.reverseComplement(key);
+				for(int j = 0; j < lengths.size(); j++) {
+					int length = lengths.get(j);
+					PrefixMatches m = wanted.get(j).get(prefixOf(bt, key, length));
+					if(m != null) m.add(key, cursor.freq());
+					//a subsequence that is its own reverse complement is listed once
+					if(rc != key && (m = wanted.get(j).get(prefixOf(bt, rc, length))) != null) m.add(rc, cursor.freq());
+				}
+			}
+		}
+
+		StringBuilder output = new StringBuilder();
+		for(PrefixMatches m : perQuery) {
+			m.appendTo(output, bt);
+		}
+		if(metrics != null) metrics.recordSearches(System.nanoTime() - start, prefixes.size());
+		return output.toString();
+	}
+
+	/**
+	 * Gets the key of the first bases of a subsequence. They are in the 
+	 * high bits of a key in lexicographic order and in the low bits 
+	 * otherwise.
+	 * 
+	 * @param bt tree the key is from
+	 * @param key subsequence of the tree's sequence length
+	 * @param length number of bases to keep
+	 * @return key of the first bases, as sequenceToLong gives it for the prefix
+	 */
+	private static long prefixOf(BTree bt, long key, int length) {
+		if(bt.isLexOrder()) {
+			return key >>> (2 * (bt.getSequenceLength() - length));
+		}
+		return key & ((1L << (2 * length)) - 1);
+	}
+
+	/**
+	 * Subsequences found for one prefix with their frequencies.
+	 */
+	private static class PrefixMatches {
+		long[] keys = new long[16];
+		int[] freqs = new int[16];
+		int n;
+
+		void add(long key, int freq) {
+			if(n == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * n);
+				freqs = Arrays.copyOf(freqs, 2 * n);
+			}
+			keys[n] = key;
+			freqs[n++] = freq;
+		}
+
+		/**
+		 * Adds one line per match to the output, sorted by key.
+		 */
+		void appendTo(StringBuilder output, BTree bt) {
+			long[] sorted = Arrays.copyOf(keys, n);
+			Arrays.sort(sorted);
+			int[] counts = new int[n];
+			for(int i = 0; i < n; i++) {
+				counts[Arrays.binarySearch(sorted, keys[i])] = freqs[i];
+			}
+			for(int i = 0; i < n; i++) {
+				output.append(bt.longToSequence(sorted[i], bt.getSequenceLength())).append(' ').append(counts[i]).append('\n');
+			}
 		}
 	}
 
@@ -70,6 +449,14 @@ public class GeneBankSearch {
 	 */
 	public static void parseArgs(String args[]){		
                 debugLevel = 0;
+                args = parseOptions(args);
+                if(topN > 0) {
+                        //there is no query file, keep the other arguments where they are
+                        List<String> shifted = new ArrayList<String>(Arrays.asList(args));
+                        if(shifted.size() < 2) printUsage();
+                        shifted.add(2, null);
+                        args = shifted.toArray(new String[shifted.size()]);
+                }
 
                 try {
                         if(args.length > 5 || args.length < 4)
@@ -81,7 +468,9 @@ public class GeneBankSearch {
 
                         if(args[0].equals("1")){
                                 cacheSize = Integer.parseInt(args[3]);
-                                cache = new Cache(cacheCapacity);
+                                //worker threads share a cache that is locked in stripes
+                                if(threads > 1) cache = new StripedCache(cacheSize, threads * 4);
+                                else cache = new Cache(cacheSize);
                         }else if(args[0].equals("0")){
                                 cache = null;
                         }else{
@@ -90,21 +479,103 @@ public class GeneBankSearch {
 
                         btreeFileName = args[1];
                         queryFileName = args[2];
+                        //only trees in the older two file format have a meta data file
                         metadataFileName = btreeFileName.replace("data", "metadata");
-                        metaSeqLength = Integer.parseInt(metadataFileName.split("\\.")[4]);
                  }catch(NumberFormatException e){
                         printUsage();
                 }
 
 	}
 	
+	/**
+	 * Pulls the optional --name [value] arguments out of the command line
+	 * and stores them. The remaining positional arguments are returned.
+	 * 
+	 * @param args arguments from the command line
+	 * @return positional arguments
+	 */
+	private static String[] parseOptions(String args[]) {
+		List<String> positional = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--prefix":
+					prefixSearch = true;
+					break;
+				case "--pin-levels":
+					pinLevels = Integer.parseInt(args[++i]);
+					if (pinLevels < 1) printUsage();
+					break;
+				case "--page-cache":
+					pageCacheMB = Integer.parseInt(args[++i]);
+					if (pageCacheMB < 1) printUsage();
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					if (threads < 1) printUsage();
+					break;
+				case "--top":
+					topN = Integer.parseInt(args[++i]);
+					if (topN < 1) printUsage();
+					break;
+				case "--summary":
+					useSummary = true;
+					break;
+				case "--prefetch":
+					prefetchWindow = Integer.parseInt(args[++i]);
+					if (prefetchWindow < 1) printUsage();
+					break;
+				case "--mmap":
+					mapFile = true;
+					break;
+				case "--bloom":
+					useBloom = true;
+					break;
+				case "--metrics":
+					metricsFlag = true;
+					break;
+				case "--metrics-json":
+					metricsJson = args[++i];
+					metricsFlag = true;
+					break;
+				default:
+					if (args[i].startsWith("--")) printUsage();
+					positional.add(args[i]);
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			printUsage();
+		}
+		//the summary is only used to list the most frequent subsequences
+		if (useSummary && topN == 0) printUsage();
+		if (topN > 0 && prefixSearch) printUsage();
+		//the mapped file only answers point lookups
+		if (mapFile && (topN > 0 || prefixSearch)) printUsage();
+		//so does the Bloom filter
+		if (useBloom && (topN > 0 || prefixSearch)) printUsage();
+		return positional.toArray(new String[positional.size()]);
+	}
+
+	
 	/**
 	 * Usage message to be printed if correct arguements are not passed. 
 	 */
 	private static void printUsage(){
 		System.err.println("Usage: Java GeneBankSearch "
 				+ "<0/1(no/with Cache)> <Btree File>"
-				+ " <Query File> <Cache Size> [<Debug level>]");
+				+ " <Query File> <Cache Size> [<Debug level>] [options]");
+		System.err.println("Options:");
+		System.err.println("--prefix: each query line is a prefix, print every subsequence that starts with it");
+		System.err.println("--pin-levels <n>: keep the nodes of the top n levels of the BTree on the heap, outside of the cache");
+		System.err.println("--page-cache <MB>: keep raw copies of recently read pages in this much memory outside of the heap");
+		System.err.println("--threads <n>: split each batch of queries over n worker threads, output stays in query order");
+		System.err.println("--top <n>: list the n most frequent subsequences instead of searching, leave out the query file");
+		System.err.println("--summary: with --top, skip subtrees using the frequency summary next to the BTree file, made if missing");
+		System.err.println("--prefetch <n>: with --prefix or --top, read the next n children of a node ahead in the background while scanning");
+		System.err.println("--bloom: skip queries the Bloom filter next to the BTree file rules out, made if missing, not with --prefix or --top");
+		System.err.println("--mmap: memory map the BTree file and look queries up in place without reading nodes, not with --prefix or --top");
+		System.err.println("--metrics: count node reads, cache hits and search times, print them to standard error at the end and show them over JMX");
+		System.err.println("--metrics-json <file>: like --metrics and also write the counts to a JSON file");
 		System.exit(1);
 	}
 
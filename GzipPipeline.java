@@ -0,0 +1,217 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stream over a gzip compressed gbk file that is decompressed on its own
+ * thread. The thread inflates the file into a small ring of buffers and
+ * hands each full buffer over to the reading side, which gives it back once
+ * it has been read. Decompression of the next part of the file then overlaps
+ * with scanning and inserting the part before it, nothing is written to disk
+ * and memory stays at BUFFERS buffers no matter how large the file is.
+ *
+ * Files made of several gzip members one after another, such as the output
+ * of bgzip, are read to the end. Only one thread may read the stream.
+ *
+ * @author Nick Figura
+ */
+public class GzipPipeline extends InputStream {
+
+	/** number of buffers in the ring */
+	public static final int BUFFERS = 4;
+	/** size of each buffer in bytes */
+	public static final int BUFFER_SIZE = 1 << 16;
+
+	private final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(BUFFERS);
+	//one more than the ring so the end of the file always fits
+	private final BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(BUFFERS + 1);
+	private final Thread inflater;
+	private Block current;
+	private int pos;
+	private boolean done;
+	private long waitNanos;
+
+	/**
+	 * Opens a gbk file, decompressing it on a separate thread if it starts
+	 * with the gzip magic bytes 1f 8b. Other files are read as they are.
+	 *
+	 * @param file gbk file, compressed or not
+	 * @return stream of the uncompressed file
+	 * @throws IOException if the file can not be opened
+	 */
+	public static InputStream open(File file) throws IOException {
+		return isGzip(file) ? new GzipPipeline(new FileInputStream(file)) : new FileInputStream(file);
+	}
+
+	/**
+	 * Checks whether a file starts with the gzip magic bytes.
+	 *
+	 * @param file file to check
+	 * @return true if the file is gzip compressed
+	 * @throws IOException if the file can not be read
+	 */
+	public static boolean isGzip(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Starts decompressing a gzip stream.
+	 *
+	 * @param compressed gzip stream, closed when the end is reached or this stream is closed
+	 */
+	public GzipPipeline(final InputStream compressed) {
+		for (int i = 0; i < BUFFERS; i++) {
+			free.add(new Block(new byte[BUFFER_SIZE]));
+		}
+		inflater = new Thread(new Runnable() {
+			public void run() {
+				inflate(compressed);
+			}
+		}, "gzip-inflate");
+		//a reader that stops early does not keep the program running
+		inflater.setDaemon(true);
+		inflater.start();
+	}
+
+	/**
+	 * Fills buffers from the ring until the end of the file, then hands over
+	 * an empty block to mark the end, or a block holding the error.
+	 */
+	private void inflate(InputStream compressed) {
+		Block end = new Block(null);
+		try {
+			GZIPInputStream in = new GZIPInputStream(compressed, BUFFER_SIZE);
+			try {
+				while (true) {
+					Block block = free.take();
+					int length = 0;
+					int read;
+					//whole buffers mean fewer hand overs between the threads
+					while (length < BUFFER_SIZE && (read = in.read(block.data, length, BUFFER_SIZE - length)) != -1) {
+						length += read;
+					}
+					if (length == 0) {
+						break;
+					}
+					block.length = length;
+					full.put(block);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			end.error = e;
+		} catch (InterruptedException e) {
+			//the stream was closed before the end
+			return;
+		}
+		full.add(end);
+	}
+
+	/**
+	 * Moves on to the next full buffer, giving the last one back to the
+	 * ring.
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean advance() throws IOException {
+		if (done) {
+			return false;
+		}
+		if (current != null) {
+			free.add(current);
+			current = null;
+		}
+		long start = System.nanoTime();
+		Block block;
+		try {
+			block = full.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for decompression");
+		}
+		waitNanos += System.nanoTime() - start;
+		if (block.data == null) {
+			done = true;
+			if (block.error != null) {
+				throw new IOException("Could not decompress the gbk file", block.error);
+			}
+			return false;
+		}
+		current = block;
+		pos = 0;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if ((current == null || pos == current.length) && !advance()) {
+			return -1;
+		}
+		return current.data[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if ((current == null || pos == current.length) && !advance()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current.data, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current == null ? 0 : current.length - pos;
+	}
+
+	/**
+	 * Gets the time the reading side spent waiting for a buffer to be
+	 * decompressed. Close to zero means decompression kept ahead of the
+	 * reader.
+	 *
+	 * @return nanoseconds waited
+	 */
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+	/**
+	 * Stops the decompression thread, which closes the compressed stream.
+	 */
+	@Override
+	public void close() {
+		done = true;
+		current = null;
+		inflater.interrupt();
+	}
+
+	/**
+	 * One buffer of the ring and how much of it holds data. A block without
+	 * a buffer marks the end of the file.
+	 */
+	private static class Block {
+		final byte[] data;
+		int length;
+		IOException error;
+
+		Block(byte[] data) {
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * Counts keys in memory before they go into the BTree. Keys and counts are
+ * kept in two primitive arrays used as an open addressing hash table, so
+ * counting a key does not allocate anything. When the table reaches its
+ * memory budget the distinct keys are handed to the BTree in sorted order
+ * through BTree.insertBatch and the table starts over.
+ *
+ * Keys must not be negative, -1 marks an empty slot the same way it marks
+ * an empty key in a BTreeNode.
+ *
+ * @author Ben Mcavoy
+ */
+public class KmerCounter {
+
+	private static final long EMPTY = -1L;
+	//a slot holds one long key and one int count
+	private static final int SLOT_BYTES = 8 + 4;
+
+	private long[] keys;
+	private int[] counts;
+	private int mask;
+	private int size;
+	private int maxSize;
+
+	/**
+	 * Creates a counter that uses about the given number of bytes.
+	 *
+	 * @param memoryBytes memory budget for the table
+	 */
+	public KmerCounter(long memoryBytes) {
+		int capacity = 16;
+		while (capacity < (1 << 30) && (long) capacity * 2 * SLOT_BYTES <= memoryBytes) {
+			capacity *= 2;
+		}
+		keys = new long[capacity];
+		counts = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+		//keep the table at most 3/4 full so probe chains stay short
+		maxSize = capacity - capacity / 4;
+	}
+
+	/**
+	 * Adds one occurrence of a key.
+	 *
+	 * @param key key to count
+	 */
+	public void add(long key) {
+		add(key, 1);
+	}
+
+	/**
+	 * Adds occurrences of a key.
+	 *
+	 * @param key key to count
+	 * @param count number of occurrences to add
+	 */
+	public void add(long key, int count) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				counts[slot] += count;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		counts[slot] = count;
+		size++;
+	}
+
+	/**
+	 * Gets the count for a key.
+	 *
+	 * @param key key to look up
+	 * @return number of occurrences, 0 if the key was not counted
+	 */
+	public int get(long key) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return counts[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	/**
+	 * Checks if the table has reached its memory budget.
+	 *
+	 * @return true if the counter should be flushed
+	 */
+	public boolean isFull() {
+		return size >= maxSize;
+	}
+
+	/**
+	 * Gets the number of distinct keys counted.
+	 *
+	 * @return number of distinct keys
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the distinct keys in ascending order.
+	 *
+	 * @return sorted keys
+	 */
+	public long[] sortedKeys() {
+		long[] sorted = new long[size];
+		int j = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				sorted[j++] = keys[i];
+			}
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Adds all counted keys to the BTree in sorted order and empties
+	 * the counter.
+	 *
+	 * @param bt tree to add the keys to
+	 */
+	public void flush(BTree bt) {
+		if (size == 0) {
+			return;
+		}
+		long[] sorted = sortedKeys();
+		int[] sortedCounts = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			sortedCounts[i] = get(sorted[i]);
+		}
+		clear();
+		bt.insertBatch(sorted, sortedCounts);
+	}
+
+	/**
+	 * Empties the counter.
+	 */
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(counts, 0);
+		size = 0;
+	}
+
+	/**
+	 * Spreads the bits of a key so neighbouring keys land in different slots.
+	 */
+	private int slot(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+}
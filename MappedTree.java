@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only view of a BTree file that is memory mapped instead of read
+ * through the page store. A lookup binary searches the keys of each node
+ * right where they are in the mapped file and follows the child page
+ * number down, so no BTreeNode is built and nothing is allocated. The
+ * operating system's page cache holds the nodes that were used, and keeps
+ * them between runs of the program.
+ *
+ * A single mapping can not be larger than 2 GB, so larger files are mapped
+ * in several pieces. Each piece holds a whole number of node slots so a
+ * node never crosses from one piece into the next. Both the fixed and the
+ * compressed node layout are read, and B+ trees are followed down to their
+ * leaves in the layout of BTreeNode.writeBPlus. The file must not change
+ * while it is mapped.
+ *
+ * @author Ben Peterson
+ */
+public class MappedTree {
+	private final ByteBuffer[] maps;
+	//bytes in every mapping but the last, a multiple of the slot size
+	private final long chunkSize;
+	private final int slotSize;
+	private final long rootPos;
+	private final boolean compressed;
+	//B+ tree leaves and internal nodes have their own layouts
+	private final boolean bplus;
+	//where the children and n are in a node of the fixed layout
+	private final int childrenOffset;
+	private final int countOffset;
+	//where the children are in a B+ tree internal node
+	private final int innerChildrenOffset;
+
+	/**
+	 * Maps the file of an open tree.
+	 *
+	 * @param bt tree to map, only its file, layout and root are used
+	 * @throws IOException if the file can not be mapped
+	 */
+	public MappedTree(BTree bt) throws IOException {
+		int t = bt.getDegree();
+		this.slotSize = bt.store.pageSize();
+		this.rootPos = bt.root.filePos;
+		this.compressed = bt.isCompressed();
+		this.bplus = (bt.getFlags() & BTree.BPLUS) != 0;
+		this.childrenOffset = (2*t-1) * (8+4);
+		this.countOffset = childrenOffset + (2*t) * 8;
+		this.innerChildrenOffset = bplus ? 1 + 4 + (2 * ((BPlusTree) bt).innerDegree() - 1) * 8 : 0;
+		this.chunkSize = (Integer.MAX_VALUE / slotSize) * (long) slotSize;
+
+		FileChannel channel = FileChannel.open(bt.BtreeFile.toPath(), StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			maps = new ByteBuffer[(int) ((length + chunkSize - 1) / chunkSize)];
+			for (int i = 0; i < maps.length; i++) {
+				long start = i * chunkSize;
+				maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, length - start));
+			}
+		} finally {
+			//the mappings stay valid after the channel is closed
+			channel.close();
+		}
+	}
+
+	/**
+	 * Gets the frequency of a key. Only absolute reads of the mappings are
+	 * used, so many threads can look keys up at once.
+	 *
+	 * @param key key to look for, already in the tree's key order and canonical form
+	 * @return frequency of the key, 0 if it is not in the tree
+	 */
+	public int lookup(long key) {
+		long pos = rootPos;
+		while (pos != -1L) {
+			ByteBuffer map = maps[(int) (pos / chunkSize)];
+			int off = (int) (pos % chunkSize);
+			if (compressed) {
+				pos = stepPacked(map, off, key);
+			}
+			else {
+				pos = bplus ? stepBPlus(map, off, key) : stepFixed(map, off, key);
+			}
+			if (pos < -1L) {
+				//the key was found, its frequency is encoded below -1
+				return (int) (-2L - pos);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Looks at one node in the fixed layout.
+	 *
+	 * @return file position of the child to go to, -1 if the key is not in
+	 * the tree, or -2 - frequency if it was found
+	 */
+	private long stepFixed(ByteBuffer map, int off, long key) {
+		int n = map.getInt(off + countOffset);
+		boolean isLeaf = map.get(off + countOffset + 4) != 0;
+		int lo = 0, hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = map.getLong(off + mid * 12);
+			if (k < key) {
+				lo = mid + 1;
+			}
+			else if (k > key) {
+				hi = mid - 1;
+			}
+			else {
+				return -2L - map.getInt(off + mid * 12 + 8);
+			}
+		}
+		if (isLeaf) {
+			return -1L;
+		}
+		return map.getLong(off + childrenOffset + lo * 8);
+	}
+
+	/**
+	 * Looks at one node in the B+ tree layout of BTreeNode.writeBPlus. Leaf
+	 * keys are followed by their counter, internal node keys are not.
+	 *
+	 * @return the same as stepFixed
+	 */
+	private long stepBPlus(ByteBuffer map, int off, long key) {
+		boolean isLeaf = map.get(off) != 0;
+		int n = map.getInt(off + 1);
+		int stride = isLeaf ? 8 + 4 : 8;
+		int lo = 0, hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = map.getLong(off + 5 + mid * stride);
+			if (k < key) {
+				lo = mid + 1;
+			}
+			else if (k > key) {
+				hi = mid - 1;
+			}
+			else {
+				if (isLeaf) {
+					return -2L - map.getInt(off + 5 + mid * stride + 8);
+				}
+				//a separator, the key is in the right child
+				lo = mid + 1;
+				break;
+			}
+		}
+		if (isLeaf) {
+			return -1L;
+		}
+		return map.getLong(off + innerChildrenOffset + lo * 8);
+	}
+
+	/**
+	 * Looks at one node in the compressed layout of BTreeNode.writePacked.
+	 * The keys are delta coded, so they are decoded in order until one is
+	 * not smaller than the key.
+	 *
+	 * @return the same as stepFixed
+	 */
+	private long stepPacked(ByteBuffer map, int off, long key) {
+		boolean isLeaf = map.get(off) != 0;
+		long v = varint(map, off + 1);
+		int n = (int) v;
+		int p = (int) (v >>> 32);
+		int width = map.get(p++);
+		int keysStart = p;
+
+		//find the first key that is not smaller than the key
+		long bits = 0;
+		int avail = 0;
+		long prev = 0;
+		int i = 0;
+		boolean found = false;
+		for (; i < n; i++) {
+			long value = 0;
+			for (int done = 0; done < width; ) {
+				int take = Math.min(width - done, 32);
+				while (avail < take) {
+					bits |= (long) (map.get(p++) & 0xFF) << avail;
+					avail += 8;
+				}
+				value |= (bits & ((1L << take) - 1)) << done;
+				bits >>>= take;
+				avail -= take;
+				done += take;
+			}
+			prev = i == 0 ? value : prev + value;
+			if (prev >= key) {
+				found = prev == key;
+				break;
+			}
+		}
+
+		//the counters start after the last byte of the packed keys
+		p = keysStart + (int) (((long) n * width + 7) / 8);
+		if (found && (!bplus || isLeaf)) {
+			for (int j = 0; j < i; j++) {
+				p = (int) (varint(map, p) >>> 32);
+			}
+			return -2L - (int) varint(map, p);
+		}
+		if (isLeaf) {
+			return -1L;
+		}
+		if (found) {
+			//a B+ tree separator, the key is in the right child
+			i++;
+		}
+		//B+ tree internal nodes have no counters to pass
+		for (int j = 0; !bplus && j < n; j++) {
+			p = (int) (varint(map, p) >>> 32);
+		}
+		int pageNumber = map.getInt(p + i * 4);
+		return pageNumber == -1 ? -1L : (long) pageNumber * slotSize;
+	}
+
+	/**
+	 * Reads a varint written by BTreeNode at an offset.
+	 *
+	 * @return the value in the low 32 bits and the offset after it in the high 32 bits
+	 */
+	private static long varint(ByteBuffer map, int p) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = map.get(p++);
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return ((long) p << 32) | (value & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads BTree nodes ahead of a traversal on background threads. The
+ * traversal names the nodes it will need soon with prefetch, they are read
+ * and decoded by the I/O threads while it works on the current node, and
+ * take hands them over in whatever order the traversal asks for them. A
+ * full scan then waits on one read at a time at most, instead of on every
+ * node in turn.
+ *
+ * Nodes that are pinned or in the cache are not read ahead, and nodes read
+ * ahead are added to the cache by take on the traversal's thread, so the
+ * cache is only ever used by that thread. The tree must not change while a
+ * prefetcher is reading it.
+ *
+ * @author Ben Peterson
+ */
+public class NodePrefetcher {
+	/** default number of nodes read ahead */
+	public static final int DEFAULT_WINDOW = 16;
+
+	private final BTree bt;
+	private final int window;
+	private final ExecutorService pool;
+	//reads that were started and not taken yet, by file position
+	private final ConcurrentHashMap<Long, Future<BTreeNode>> pending = new ConcurrentHashMap<Long, Future<BTreeNode>>();
+
+	/**
+	 * Creates a prefetcher for a tree.
+	 *
+	 * @param bt tree to read from
+	 * @param window number of nodes a traversal reads ahead under one node
+	 */
+	public NodePrefetcher(BTree bt, int window) {
+		this.bt = bt;
+		this.window = window;
+		this.pool = Executors.newFixedThreadPool(Math.max(1, Math.min(window, 4)), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "btree-prefetch");
+				//reads left over when the program ends do not keep it running
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Gets the number of nodes a traversal reads ahead.
+	 *
+	 * @return window size
+	 */
+	public int window() {
+		return window;
+	}
+
+	/**
+	 * Starts reading a node in the background, unless it is pinned, cached
+	 * or already being read.
+	 *
+	 * @param filePos file position of the node
+	 * @return true if this call started the read
+	 */
+	public boolean prefetch(final long filePos) {
+		if (filePos == -1L || pending.containsKey(filePos) || bt.resident(filePos) != null) {
+			return false;
+		}
+		FutureTask<BTreeNode> read = new FutureTask<BTreeNode>(new Callable<BTreeNode>() {
+			public BTreeNode call() {
+				return bt.readNode(filePos);
+			}
+		});
+		//another traversal thread may have started the same read
+		if (pending.putIfAbsent(filePos, read) != null) {
+			return false;
+		}
+		pool.execute(read);
+		return true;
+	}
+
+	/**
+	 * Gets a node, waiting for its read if it was prefetched and reading it
+	 * the usual way if not.
+	 *
+	 * @param filePos file position of the node
+	 * @return the node
+	 */
+	public BTreeNode take(long filePos) {
+		Future<BTreeNode> read = pending.remove(filePos);
+		if (read == null) {
+			return bt.diskRead(filePos);
+		}
+		if (bt.metrics != null) bt.metrics.cacheMisses.increment();
+		try {
+			BTreeNode node = read.get();
+			bt.keep(node);
+			return node;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return bt.diskRead(filePos);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Prefetch of node at " + filePos + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Drops the read of a node the traversal no longer needs. A read that
+	 * has not started yet is never done, one that has is left to finish and
+	 * its node is thrown away. Taking the node later reads it the usual way.
+	 *
+	 * @param filePos file position of the node
+	 */
+	public void cancel(long filePos) {
+		Future<BTreeNode> read = pending.remove(filePos);
+		if (read != null) {
+			read.cancel(false);
+		}
+	}
+
+	/**
+	 * Drops the reads that were not taken and stops the I/O threads.
+	 */
+	public void close() {
+		for (Future<BTreeNode> read : pending.values()) {
+			read.cancel(false);
+		}
+		pending.clear();
+		pool.shutdown();
+	}
+}
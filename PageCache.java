@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Second level cache that holds the raw bytes of BTree pages outside of the
+ * Java heap. It sits under the node cache: a node that is not in the node
+ * cache is decoded from a copy of its page here instead of being read from
+ * disk. Because the pages are kept as bytes in direct buffers, it can hold
+ * many more pages than the node cache holds nodes without adding to garbage
+ * collection.
+ *
+ * The pages are kept in fixed slots of direct buffers of up to 1 GB each,
+ * and a map in least recently used order tells which slot holds which file
+ * position. When every slot is used the least recently used page gives up
+ * its slot. Pages are only copies of what is on disk, so nothing has to be
+ * written when a page is dropped.
+ *
+ * @author Ben Peterson
+ */
+public class PageCache {
+	//slots of the cache, spread over direct buffers
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final int pageSize;
+	private final int pagesPerChunk;
+	private final int capacity;
+	//slot of each cached page, ordered from least to most recently used
+	private final LinkedHashMap<Long, Integer> slots;
+	private int used;
+
+	/**
+	 * Constructor for the page cache.
+	 *
+	 * @param capacity number of pages the cache holds
+	 * @param pageSize number of bytes in one page
+	 */
+	public PageCache(int capacity, int pageSize) {
+		this.capacity = capacity;
+		this.pageSize = pageSize;
+		this.pagesPerChunk = Math.max(1, (1 << 30) / pageSize);
+		this.slots = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+		for (int left = capacity; left > 0; left -= pagesPerChunk) {
+			chunks.add(ByteBuffer.allocateDirect(Math.min(left, pagesPerChunk) * pageSize));
+		}
+	}//end of PageCache
+
+	/**
+	 * Copies a cached page into a buffer.
+	 *
+	 * @param filePos file position of the page
+	 * @param page buffer to copy into, cleared first
+	 * @return true if the page was cached and copied, flipped and ready to
+	 * be decoded, false if it is not cached
+	 */
+	public synchronized boolean get(long filePos, ByteBuffer page) {
+		Integer slot = slots.get(filePos);
+		if (slot == null) {
+			return false;
+		}
+		page.clear();
+		page.put(slice(slot));
+		page.flip();
+		return true;
+	}//end of get
+
+	/**
+	 * Stores a copy of a page. The position of the buffer is not changed.
+	 *
+	 * @param filePos file position of the page
+	 * @param page buffer holding the page from its position to its limit
+	 */
+	public synchronized void put(long filePos, ByteBuffer page) {
+		if (capacity == 0) {
+			return;
+		}
+		Integer slot = slots.get(filePos);
+		if (slot == null) {
+			if (used < capacity) {
+				slot = used++;
+			}
+			else {
+				//take the slot of the least recently used page
+				Iterator<Map.Entry<Long, Integer>> eldest = slots.entrySet().iterator();
+				slot = eldest.next().getValue();
+				eldest.remove();
+			}
+			slots.put(filePos, slot);
+		}
+		ByteBuffer src = page.duplicate();
+		if (src.remaining() > pageSize) {
+			src.limit(src.position() + pageSize);
+		}
+		slice(slot).put(src);
+	}//end of put
+
+	/**
+	 * Gets a buffer over one slot, positioned at its first byte.
+	 */
+	private ByteBuffer slice(int slot) {
+		ByteBuffer chunk = chunks.get(slot / pagesPerChunk).duplicate();
+		int start = (slot % pagesPerChunk) * pageSize;
+		chunk.limit(start + pageSize);
+		chunk.position(start);
+		return chunk;
+	}//end of slice
+
+	/**
+	 * Gets the number of pages in the cache.
+	 *
+	 * @return pages cached
+	 */
+	public synchronized int cacheSize() {
+		return slots.size();
+	}
+}//end of class PageCache
@@ -0,0 +1,161 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Page store that sits underneath the BTree. The BTree file is opened once
+ * and kept open until the tree is closed. Each node is moved in and out of
+ * the file as one positional ByteBuffer transfer, and the end of the file is
+ * tracked in memory so new nodes can be placed without asking the file
+ * system for its length.
+ *
+ * Pages are read with positional reads into a buffer that belongs to the
+ * calling thread, so a read only store can be shared by many threads.
+ * Pages are allocated one at a time, so threads that add nodes to the
+ * same tree never get the same page.
+ *
+ * @author Ben Peterson
+ */
+public class PageStore {
+
+	private FileChannel channel;
+	private ThreadLocal<ByteBuffer> buffer;
+	private final int pageSize;
+	private long fileEnd;
+
+	/**
+	 * Opens the file backing a BTree. A store opened for writing starts with
+	 * an empty file, a read only store keeps the file as it is.
+	 *
+	 * @param file file holding the BTree nodes
+	 * @param pageSize number of bytes used by one node
+	 * @param readOnly true to open an existing tree for searching
+	 * @throws IOException if the file can not be opened
+	 */
+	public PageStore(File file, int pageSize, boolean readOnly) throws IOException {
+		this(file, pageSize, readOnly, !readOnly);
+	}
+
+	/**
+	 * Opens the file backing a BTree.
+	 *
+	 * @param file file holding the BTree nodes
+	 * @param pageSize number of bytes used by one node
+	 * @param readOnly true to open an existing tree for searching
+	 * @param truncate true to start a writable store with an empty file,
+	 * false to keep the pages already in it
+	 * @throws IOException if the file can not be opened
+	 */
+	public PageStore(File file, int pageSize, boolean readOnly, boolean truncate) throws IOException {
+		if (readOnly) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		else if (!truncate) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		this.pageSize = pageSize;
+		this.buffer = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(PageStore.this.pageSize);
+			}
+		};
+		//a page at the end may have been written short, the next page starts after it
+		this.fileEnd = (channel.size() + pageSize - 1) / pageSize * pageSize;
+	}
+
+	/**
+	 * Gets the buffer the calling thread uses to move one page. The buffer
+	 * is cleared and ready to be filled before it is passed to write.
+	 *
+	 * @return page sized buffer
+	 */
+	public ByteBuffer buffer() {
+		ByteBuffer page = buffer.get();
+		page.clear();
+		return page;
+	}
+
+	/**
+	 * Reads the page starting at the given file position. The buffer
+	 * belongs to the calling thread and is reused by its next read.
+	 *
+	 * @param filePos location of the page in the file
+	 * @return buffer holding the page, positioned at its first byte
+	 * @throws IOException if the page can not be read
+	 */
+	public ByteBuffer read(long filePos) throws IOException {
+		ByteBuffer page = buffer();
+		while (page.hasRemaining()) {
+			if (channel.read(page, filePos + page.position()) < 0) {
+				throw new IOException("Unexpected end of file reading page at " + filePos);
+			}
+		}
+		page.flip();
+		return page;
+	}
+
+	/**
+	 * Writes a filled page to the given file position.
+	 *
+	 * @param filePos location of the page in the file
+	 * @param page buffer holding the page, positioned at its first byte
+	 * @throws IOException if the page can not be written
+	 */
+	public void write(long filePos, ByteBuffer page) throws IOException {
+		long pos = filePos;
+		while (page.hasRemaining()) {
+			pos += channel.write(page, pos);
+		}
+		synchronized (this) {
+			if (pos > fileEnd) {
+				fileEnd = pos;
+			}
+		}
+	}
+
+	/**
+	 * Reserves space for a new page at the end of the file.
+	 *
+	 * @return file position of the new page
+	 */
+	public synchronized long allocate() {
+		long filePos = fileEnd;
+		fileEnd += pageSize;
+		return filePos;
+	}
+
+	/**
+	 * Gets the current end of the file, including pages that have been
+	 * allocated but not written yet.
+	 *
+	 * @return length of the file in bytes
+	 */
+	public synchronized long length() {
+		return fileEnd;
+	}
+
+	/**
+	 * Gets the number of bytes in one page.
+	 *
+	 * @return page size
+	 */
+	public int pageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException if the file can not be closed
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+}
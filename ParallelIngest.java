@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads a gbk file into a BTree using several threads. The sequences of
+ * the file are split into chunks, one sequence per chunk or, for long
+ * sequences, pieces that overlap by k-1 bases so no subsequence is lost at
+ * a chunk boundary. Worker threads on a fork-join pool encode and count the
+ * subsequences of the chunks, the counts are merged, and the calling thread
+ * is the only one that writes them to the BTree through insertBatch.
+ *
+ * Sequences are handled in batches of about BATCH_BASES bases so memory
+ * stays bounded on large files. The time spent reading, counting and
+ * inserting is recorded for each stage.
+ *
+ * @author Nick Figura
+ */
+public class ParallelIngest {
+
+	/** number of subsequence start positions handled by one worker task */
+	public static final int CHUNK_BASES = 1 << 18;
+	/** number of bases read before the counted keys are written to the tree */
+	public static final long BATCH_BASES = 1L << 26;
+
+	private BTree bt;
+	private int k;
+	private ForkJoinPool pool;
+	private int threads;
+	private long readNanos, countNanos, insertNanos;
+	private long chunks, sequences;
+
+	/**
+	 * Creates a parallel reader for a tree.
+	 *
+	 * @param bt tree that receives the subsequences
+	 * @param threads number of worker threads
+	 */
+	public ParallelIngest(BTree bt, int threads) {
+		this.bt = bt;
+		this.k = bt.getSequenceLength();
+		this.threads = threads;
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Reads every sequence from the scanner and adds its subsequences to
+	 * the tree.
+	 *
+	 * @param scanner scanner over the gbk file
+	 * @throws IOException if the file can not be read
+	 */
+	public void run(GbkScanner scanner) throws IOException {
+		List<Chunk> batch = new ArrayList<Chunk>();
+		long batchBases = 0;
+		while (true) {
+			long start = System.nanoTime();
+			byte[] sequence = scanner.nextSequence();
+			readNanos += System.nanoTime() - start;
+			if (sequence == null) {
+				break;
+			}
+			sequences++;
+			//subsequences start at 0 up to, not including, length - k
+			int starts = sequence.length - k;
+			for (int s = 0; s < starts; s += CHUNK_BASES) {
+				batch.add(new Chunk(sequence, s, Math.min(s + CHUNK_BASES, starts)));
+			}
+			batchBases += sequence.length;
+			if (batchBases >= BATCH_BASES) {
+				countAndInsert(batch);
+				batch.clear();
+				batchBases = 0;
+			}
+		}
+		countAndInsert(batch);
+		pool.shutdown();
+	}
+
+	/**
+	 * Counts the chunks of one batch on the pool and writes the merged
+	 * counts to the tree.
+	 */
+	private void countAndInsert(List<Chunk> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		chunks += batch.size();
+		long start = System.nanoTime();
+		Counts counts = pool.invoke(new CountTask(batch, 0, batch.size()));
+		countNanos += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		if (counts.size > 0) {
+			bt.insertBatch(counts.keys, counts.counts);
+		}
+		insertNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Prints how long each stage took.
+	 *
+	 * @param out stream to print to
+	 */
+	public void printTimings(PrintStream out) {
+		out.println("Worker threads: " + threads);
+		out.println("Sequences read: " + sequences + " (" + chunks + " chunks)");
+		out.println("Read time: " + readNanos / 1000000 + " ms");
+		out.println("Count time: " + countNanos / 1000000 + " ms");
+		out.println("Insert time: " + insertNanos / 1000000 + " ms");
+	}
+
+	/**
+	 * Subsequence start positions from start up to, not including, end
+	 * of one sequence.
+	 */
+	private static class Chunk {
+		byte[] sequence;
+		int start, end;
+
+		Chunk(byte[] sequence, int start, int end) {
+			this.sequence = sequence;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Distinct keys in ascending order with their counts.
+	 */
+	private static class Counts {
+		long[] keys;
+		int[] counts;
+		int size;
+
+		Counts(long[] keys, int[] counts, int size) {
+			this.keys = keys;
+			this.counts = counts;
+			this.size = size;
+		}
+
+		/**
+		 * Merges two sorted sets of counts, adding the counts of keys
+		 * found in both.
+		 */
+		static Counts merge(Counts a, Counts b) {
+			long[] keys = new long[a.size + b.size];
+			int[] counts = new int[a.size + b.size];
+			int i = 0, j = 0, n = 0;
+			while (i < a.size && j < b.size) {
+				if (a.keys[i] < b.keys[j]) {
+					keys[n] = a.keys[i];
+					counts[n++] = a.counts[i++];
+				}
+				else if (a.keys[i] > b.keys[j]) {
+					keys[n] = b.keys[j];
+					counts[n++] = b.counts[j++];
+				}
+				else {
+					keys[n] = a.keys[i];
+					counts[n++] = a.counts[i++] + b.counts[j++];
+				}
+			}
+			while (i < a.size) {
+				keys[n] = a.keys[i];
+				counts[n++] = a.counts[i++];
+			}
+			while (j < b.size) {
+				keys[n] = b.keys[j];
+				counts[n++] = b.counts[j++];
+			}
+			if (n < keys.length) {
+				keys = Arrays.copyOf(keys, n);
+				counts = Arrays.copyOf(counts, n);
+			}
+			return new Counts(keys, counts, n);
+		}
+	}
+
+	/**
+	 * Counts a range of chunks, splitting the range in half until a
+	 * single chunk is left.
+	 */
+	private class CountTask extends RecursiveTask<Counts> {
+		private static final long serialVersionUID = 1L;
+		private List<Chunk> chunks;
+		private int from, to;
+
+		CountTask(List<Chunk> chunks, int from, int to) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Counts compute() {
+			if (to - from == 1) {
+				return count(chunks.get(from));
+			}
+			int mid = (from + to) >>> 1;
+			CountTask left = new CountTask(chunks, from, mid);
+			left.fork();
+			Counts right = new CountTask(chunks, mid, to).compute();
+			return Counts.merge(left.join(), right);
+		}
+
+		/**
+		 * Encodes and counts the subsequences starting in one chunk. The
+		 * window runs over the k-1 bases after the chunk so the last
+		 * subsequences of the chunk are complete.
+		 */
+		private Counts count(Chunk chunk) {
+			int positions = chunk.end - chunk.start;
+			//room for every position to be a distinct key without filling the table
+			KmerCounter counter = new KmerCounter((long) positions * 4 * (8 + 4));
+			byte[] sequence = chunk.sequence;
+			int highShift = 2 * (k - 1);
+			long mask = (1L << (2 * k)) - 1;
+			boolean lexOrder = bt.isLexOrder();
+			boolean canonical = bt.isCanonical();
+			long window = 0;
+			long reverse = 0; //reverse complement of the window
+			int valid = 0;
+			int last = chunk.end + k - 1;
+			for (int p = chunk.start; p < last; p++) {
+				byte code = sequence[p];
+				if (code == GbkScanner.GAP) {
+					valid = 0;
+					continue;
+				}
+				if (lexOrder) {
+					window = ((window << 2) | code) & mask;
+					reverse = (reverse >>> 2) | ((long) (code ^ 3) << highShift);
+				}
+				else {
+					window = (window >>> 2) | ((long) code << highShift);
+					reverse = ((reverse << 2) | (code ^ 3)) & mask;
+				}
+				if (++valid >= k) {
+					counter.add(canonical ? Math.min(window, reverse) : window);
+				}
+			}
+			long[] keys = counter.sortedKeys();
+			int[] counts = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				counts[i] = counter.get(keys[i]);
+			}
+			return new Counts(keys, counts, keys.length);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache that can be shared by many threads. The nodes are spread over a
+ * number of smaller caches by file position and each of them is locked on
+ * its own, so threads working on different parts of the tree do not wait
+ * for each other. Every stripe keeps its own least recently used order.
+ *
+ * A thread that can not write a changed node the moment it is evicted adds
+ * nodes with addObjectWriteBack. The evicted node then stays in the cache,
+ * outside of the stripes, until writtenBack says it is on disk, so no
+ * thread reads the older copy from the file in the meantime.
+ *
+ * @author Ben Peterson
+ */
+public class StripedCache extends Cache {
+	//stripes of the cache, picked by the hash of the file position
+	private final Cache[] stripes;
+	//changed nodes that were evicted by addObjectWriteBack and are not written yet
+	private final ConcurrentHashMap<Long, BTreeNode> writeBacks = new ConcurrentHashMap<Long, BTreeNode>();
+
+	/**
+	 * Constructor for a striped cache.
+	 *
+	 * @param cacheSize total number of nodes the cache holds
+	 * @param stripeCount number of stripes, rounded up to a power of two
+	 * and lowered so every stripe holds at least one node
+	 */
+	public StripedCache(int cacheSize, int stripeCount) {
+		super(0);
+		int count = 1;
+		while (count < stripeCount && count * 2 <= cacheSize) {
+			count <<= 1;
+		}
+		stripes = new Cache[count];
+		//each stripe gets an equal share and the first ones one node of the rest,
+		//so the stripes add up to exactly the cache size
+		int share = cacheSize / count;
+		int rest = cacheSize % count;
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Cache(i < rest ? share + 1 : share);
+		}
+	}//end of StripedCache
+
+	/**
+	 * Picks the stripe that holds a file position.
+	 */
+	private Cache stripe(long fileOffset) {
+		long h = fileOffset * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 32) & (stripes.length - 1)];
+	}//end of stripe
+
+	@Override
+	public BTreeNode addObject(BTreeNode toAdd, boolean dirty) {
+		Cache stripe = stripe(toAdd.filePos);
+		synchronized (stripe) {
+			return stripe.addObject(toAdd, dirty);
+		}
+	}//end of addObject
+
+	/**
+	 * Adds a node like addObject, but a changed node that is evicted is
+	 * still returned by getObject until writtenBack is called for it.
+	 *
+	 * @param toAdd object to be added to the cache
+	 * @param dirty true if the node differs from its copy on disk
+	 * @return node that was evicted and needs to be written to disk, null if none
+	 */
+	public BTreeNode addObjectWriteBack(BTreeNode toAdd, boolean dirty) {
+		Cache stripe = stripe(toAdd.filePos);
+		synchronized (stripe) {
+			BTreeNode evicted = stripe.addObject(toAdd, dirty);
+			if (evicted != null) {
+				//put in under the stripe lock so getObject never misses it
+				writeBacks.put(evicted.filePos, evicted);
+			}
+			return evicted;
+		}
+	}//end of addObjectWriteBack
+
+	/**
+	 * Checks if an evicted node still has to be written. It does not once
+	 * another thread that evicted it too has written it.
+	 *
+	 * @param node node returned by addObjectWriteBack
+	 * @return true if the node is waiting to be written
+	 */
+	public boolean isWriteBack(BTreeNode node) {
+		return writeBacks.get(node.filePos) == node;
+	}//end of isWriteBack
+
+	/**
+	 * Lets go of an evicted node once it has been written to disk.
+	 *
+	 * @param node node returned by addObjectWriteBack
+	 */
+	public void writtenBack(BTreeNode node) {
+		writeBacks.remove(node.filePos, node);
+	}//end of writtenBack
+
+	@Override
+	public BTreeNode getObject(long fileOffset) {
+		Cache stripe = stripe(fileOffset);
+		synchronized (stripe) {
+			BTreeNode node = stripe.getObject(fileOffset);
+			return node != null ? node : writeBacks.get(fileOffset);
+		}
+	}//end of getObject
+
+	@Override
+	public BTreeNode removeObject(long fileOffset) {
+		Cache stripe = stripe(fileOffset);
+		synchronized (stripe) {
+			return stripe.removeObject(fileOffset);
+		}
+	}//end of removeObject
+
+	@Override
+	public List<BTreeNode> getDirty() {
+		List<BTreeNode> dirty = new ArrayList<BTreeNode>();
+		for (Cache stripe : stripes) {
+			synchronized (stripe) {
+				dirty.addAll(stripe.getDirty());
+			}
+		}
+		Collections.sort(dirty, new Comparator<BTreeNode>() {
+			public int compare(BTreeNode a, BTreeNode b) {
+				return Long.compare(a.filePos, b.filePos);
+			}
+		});
+		return dirty;
+	}//end of getDirty
+
+	@Override
+	public boolean isFull() {
+		for (Cache stripe : stripes) {
+			synchronized (stripe) {
+				if (!stripe.isFull()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int cacheSize() {
+		int size = 0;
+		for (Cache stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.cacheSize();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getDirtyEvictions() {
+		long evictions = 0;
+		for (Cache stripe : stripes) {
+			synchronized (stripe) {
+				evictions += stripe.getDirtyEvictions();
+			}
+		}
+		return evictions;
+	}
+
+	@Override
+	public long getCleanEvictions() {
+		long evictions = 0;
+		for (Cache stripe : stripes) {
+			synchronized (stripe) {
+				evictions += stripe.getCleanEvictions();
+			}
+		}
+		return evictions;
+	}
+
+	@Override
+	public void resetCounters() {
+		for (Cache stripe : stripes) {
+			synchronized (stripe) {
+				stripe.resetCounters();
+			}
+		}
+	}
+}//end of class StripedCache
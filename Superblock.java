@@ -0,0 +1,154 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * First page of a BTree file. It holds everything that used to be in the
+ * separate meta data file, the degree, the subsequence length and the format
+ * flags, along with the size of a node slot, the page number of the root and
+ * the number of node pages. A CRC32 of those fields is stored after them so a
+ * damaged header is noticed when the tree is opened.
+ *
+ * Node slots are a power of two no smaller than 64 bytes when a node fits in
+ * 4096 bytes and a multiple of 4096 otherwise, so a node never spans two
+ * pages of the operating system. Page number p starts at file position
+ * p * slotSize and page 0 is the superblock itself.
+ *
+ * A B+ tree also keeps the degree of its internal nodes, which have no
+ * counters and so fit more keys in a slot than the leaves. It is 0 for a
+ * BTree.
+ *
+ * @author Ben Peterson
+ */
+public class Superblock {
+
+	/** "GBKT", the first bytes of every BTree file in this format */
+	public static final int MAGIC = 0x47424B54;
+	/** version of the file format written by this class */
+	public static final int VERSION = 2;
+	/** number of bytes used by the superblock fields and their checksum */
+	public static final int SIZE = 4 * 7 + 8 * 2 + 4;
+
+	int degree;
+	int seqLength;
+	int flags;
+	int slotSize;
+	long rootPage;
+	long nodeCount;
+	int innerDegree;
+
+	/**
+	 * Creates the superblock for a new tree.
+	 *
+	 * @param degree degree of the tree
+	 * @param seqLength subsequence length
+	 * @param flags format flags of the tree
+	 * @param nodeSize number of bytes one node needs
+	 */
+	public Superblock(int degree, int seqLength, int flags, int nodeSize) {
+		this.degree = degree;
+		this.seqLength = seqLength;
+		this.flags = flags;
+		this.slotSize = slotSize(nodeSize);
+	}
+
+	/**
+	 * Superblock read back from a file.
+	 */
+	private Superblock() {
+	}
+
+	/**
+	 * Works out the size of a page aligned node slot.
+	 *
+	 * @param nodeSize number of bytes one node needs
+	 * @return slot size that divides or is a multiple of 4096
+	 */
+	public static int slotSize(int nodeSize) {
+		if (nodeSize > 4096) {
+			return (nodeSize + 4095) / 4096 * 4096;
+		}
+		int size = 64;
+		while (size < nodeSize) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Reads the superblock at the start of a BTree file. Files in the older
+	 * format start with the first key of the root instead. Keys use at most
+	 * 62 bits and an empty root starts with -1, so they can never start
+	 * with the magic number.
+	 *
+	 * @param file BTree file
+	 * @return the superblock, or null if the file is in the older format
+	 * @throws IOException if the file can not be read or the superblock is damaged
+	 */
+	public static Superblock read(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer page = ByteBuffer.allocate(SIZE);
+			while (page.hasRemaining()) {
+				if (channel.read(page, page.position()) < 0) {
+					break;
+				}
+			}
+			page.flip();
+			if (page.remaining() < 4 || page.getInt(0) != MAGIC) {
+				return null;
+			}
+			int version = page.remaining() < 8 ? 0 : page.getInt(4);
+			if (version != VERSION) {
+				throw new IOException(file + " has format version " + version + ", only " + VERSION + " is supported");
+			}
+			if (page.remaining() < SIZE) {
+				throw new IOException("Superblock of " + file + " is cut short");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(page.array(), 0, SIZE - 4);
+			if ((int) crc.getValue() != page.getInt(SIZE - 4)) {
+				throw new IOException("Superblock checksum does not match in " + file);
+			}
+			page.position(8);
+			Superblock sb = new Superblock();
+			sb.degree = page.getInt();
+			sb.seqLength = page.getInt();
+			sb.flags = page.getInt();
+			sb.slotSize = page.getInt();
+			sb.rootPage = page.getLong();
+			sb.nodeCount = page.getLong();
+			sb.innerDegree = page.getInt();
+			return sb;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes the superblock to page 0 of a store.
+	 *
+	 * @param store page store of the BTree file
+	 * @throws IOException if the page can not be written
+	 */
+	public void write(PageStore store) throws IOException {
+		ByteBuffer page = store.buffer();
+		page.putInt(MAGIC);
+		page.putInt(VERSION);
+		page.putInt(degree);
+		page.putInt(seqLength);
+		page.putInt(flags);
+		page.putInt(slotSize);
+		page.putLong(rootPage);
+		page.putLong(nodeCount);
+		page.putInt(innerDegree);
+		CRC32 crc = new CRC32();
+		crc.update(page.array(), 0, page.position());
+		page.putInt((int) crc.getValue());
+		page.flip();
+		store.write(0L, page);
+	}
+}
@@ -0,0 +1,404 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import bench.Workload;
+import bench.Workloads;
+
+/**
+ * The work the JMH benchmarks of the bench package measure: turning
+ * subsequences into keys and back, writing nodes to pages and reading them
+ * back, cache lookups and evictions, building a tree from test5.gbk with
+ * insert or the bulk loader, point and batch searches with the bundled
+ * query files and full scans with a cursor.
+ *
+ * The data comes from the bundled files or from a Random with a fixed seed,
+ * so two runs do the same work and their results can be compared. Trees
+ * are written to a temporary directory that is deleted at teardown.
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+public class BenchmarkWorkloads {
+
+	/**
+	 * Work that writes files, in a temporary directory of its own.
+	 */
+	abstract static class FileWorkload implements Workload {
+		File workDir;
+
+		public void setup(Map<String, String> params) throws IOException {
+			workDir = Files.createTempDirectory("btree-bench").toFile();
+		}
+
+		public void teardown() throws IOException {
+			for (File f : workDir.listFiles()) {
+				f.delete();
+			}
+			workDir.delete();
+		}
+
+		/**
+		 * Creates a small tree in the work directory, used for the methods
+		 * that need a tree but not its contents.
+		 */
+		BTree scratchTree(int t, int k) throws IOException {
+			return BTree.create(t, k, new File(workDir, "scratch").getPath(), null, 0);
+		}
+	}
+
+	/**
+	 * Turns one subsequence into a key with BTree.sequenceToLong per run.
+	 */
+	public static class Encode extends FileWorkload {
+		private BTree bt;
+		private String[] sequences;
+		private int next;
+
+		@Override
+		public void setup(Map<String, String> params) throws IOException {
+			super.setup(params);
+			int k = Integer.parseInt(params.get("k"));
+			bt = scratchTree(2, k);
+			sequences = new String[100000];
+			Random random = new Random(42);
+			char[] s = new char[k];
+			for (int i = 0; i < sequences.length; i++) {
+				for (int j = 0; j < k; j++) {
+					s[j] = "ACGT".charAt(random.nextInt(4));
+				}
+				sequences[i] = new String(s);
+			}
+		}
+
+		public void run(Blackhole bh) {
+			bh.consume(bt.sequenceToLong(sequences[next]));
+			if (++next == sequences.length) next = 0;
+		}
+
+		@Override
+		public void teardown() throws IOException {
+			bt.close();
+			super.teardown();
+		}
+	}
+
+	/**
+	 * Turns one key back into a subsequence with BTree.longToSequence per
+	 * run.
+	 */
+	public static class Decode extends FileWorkload {
+		private int k;
+		private BTree bt;
+		private long[] keys;
+		private int next;
+
+		@Override
+		public void setup(Map<String, String> params) throws IOException {
+			super.setup(params);
+			k = Integer.parseInt(params.get("k"));
+			bt = scratchTree(2, k);
+			keys = new long[100000];
+			Random random = new Random(42);
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextLong() & ((1L << 2*k) - 1);
+			}
+		}
+
+		public void run(Blackhole bh) {
+			bh.consume(bt.longToSequence(keys[next], k));
+			if (++next == keys.length) next = 0;
+		}
+
+		@Override
+		public void teardown() throws IOException {
+			bt.close();
+			super.teardown();
+		}
+	}
+
+	/**
+	 * Writes a full internal node to a page and reads it back, in the fixed
+	 * layout or the compressed one.
+	 */
+	public static class Node implements Workload {
+		private boolean packed;
+		private int pageSize;
+		private BTreeNode node, copy;
+		private ByteBuffer page;
+
+		public void setup(Map<String, String> params) {
+			int t = Integer.parseInt(params.get("t"));
+			int k = Integer.parseInt(params.get("k"));
+			packed = "packed".equals(params.get("layout"));
+			pageSize = packed ? BTreeNode.packedSize(t, k) : BTree.nodeSize(t);
+			Random random = new Random(42);
+			long[] keys = new long[2*t-1];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextLong() & ((1L << 2*k) - 1);
+			}
+			Arrays.sort(keys);
+			node = new BTreeNode(t, 4096);
+			node.isLeaf = false;
+			for (int i = 0; i < keys.length; i++) {
+				node.insertAt(i, keys[i], 1 + random.nextInt(1000));
+			}
+			for (int i = 0; i < 2*t; i++) {
+				node.children[i] = (long) (1 + random.nextInt(1 << 20)) * pageSize;
+			}
+			copy = new BTreeNode(t, 0);
+			page = ByteBuffer.allocateDirect(pageSize);
+		}
+
+		public void run(Blackhole bh) {
+			page.clear();
+			if (packed) node.writePacked(page, pageSize);
+			else node.writeTo(page);
+			page.flip();
+			if (packed) copy.readPacked(page, pageSize, node.filePos);
+			else copy.readFrom(page);
+			bh.consume(copy.keys[copy.n - 1]);
+		}
+
+		public void teardown() {
+		}
+	}
+
+	/**
+	 * Looks one node up in a Cache per run and adds it on a miss. The file
+	 * positions are skewed toward the start of the file the way the top of
+	 * a tree is used more than its leaves.
+	 */
+	public static class CacheLookup implements Workload {
+		private static final int NODES = 50000;
+		private Cache cache;
+		private BTreeNode[] nodes;
+		private int[] accesses;
+		private int next;
+
+		public void setup(Map<String, String> params) {
+			nodes = new BTreeNode[NODES];
+			for (int i = 0; i < NODES; i++) {
+				nodes[i] = new BTreeNode(2, (long) i * 4096);
+			}
+			Random random = new Random(42);
+			accesses = new int[1000000];
+			for (int i = 0; i < accesses.length; i++) {
+				double r = random.nextDouble();
+				accesses[i] = (int) (NODES * r * r * r);
+			}
+			cache = new Cache(Integer.parseInt(params.get("size")));
+		}
+
+		public void run(Blackhole bh) {
+			int a = accesses[next];
+			if (++next == accesses.length) next = 0;
+			BTreeNode node = cache.getObject((long) a * 4096);
+			if (node == null) {
+				cache.addObject(nodes[a], false);
+			}
+			bh.consume(node);
+		}
+
+		public void teardown() {
+		}
+	}
+
+	/**
+	 * Builds a tree from the first subsequences of test5.gbk with insert
+	 * and a cache of 1000 nodes. Every run starts from a new file.
+	 */
+	public static class Insert extends FileWorkload {
+		private int t, k;
+		private long[] keys;
+
+		@Override
+		public void setup(Map<String, String> params) throws IOException {
+			super.setup(params);
+			t = Integer.parseInt(params.get("t"));
+			k = Integer.parseInt(params.get("k"));
+			keys = readKeys(k, Workloads.keyLimit());
+		}
+
+		public void run(Blackhole bh) throws IOException {
+			BTree bt = BTree.create(t, k, new File(workDir, "insert").getPath(), new Cache(1000), 0);
+			for (long key : keys) {
+				bt.insert(key);
+			}
+			bt.writeCache();
+			bh.consume(bt.getNodeCount());
+			bt.close();
+			bt.BtreeFile.delete();
+		}
+	}
+
+	/**
+	 * Builds the same trees as Insert with the BTreeBulkLoader of the
+	 * --bulk option. Every run starts from a new file.
+	 */
+	public static class BulkLoad extends FileWorkload {
+		private int t, k;
+		private long[] keys;
+
+		@Override
+		public void setup(Map<String, String> params) throws IOException {
+			super.setup(params);
+			t = Integer.parseInt(params.get("t"));
+			k = Integer.parseInt(params.get("k"));
+			keys = readKeys(k, Workloads.keyLimit());
+		}
+
+		public void run(Blackhole bh) throws IOException {
+			BTree bt = BTree.create(t, k, new File(workDir, "bulk").getPath(), new Cache(1000), 0);
+			BTreeBulkLoader loader = new BTreeBulkLoader(bt, BTreeBulkLoader.DEFAULT_RUN_SIZE);
+			for (long key : keys) {
+				loader.add(key);
+			}
+			loader.finish();
+			bt.writeCache();
+			bh.consume(bt.getNodeCount());
+			bt.close();
+			bt.BtreeFile.delete();
+		}
+	}
+
+	/**
+	 * Looks up every subsequence of query16 or query31 in a tree built from
+	 * the first subsequences of test5.gbk, one search from the root per
+	 * query, all of them with lookupAll the way GeneBankSearch does, or
+	 * through a MappedTree.
+	 */
+	public static class Search extends FileWorkload {
+		private String mode;
+		private BTree bt;
+		private MappedTree map;
+		private long[] queries;
+
+		@Override
+		public void setup(Map<String, String> params) throws IOException {
+			super.setup(params);
+			int k = Integer.parseInt(params.get("k"));
+			mode = params.get("mode");
+			bt = BTree.open(searchTree(workDir, k), null, new Cache(1000));
+			List<Long> keys = new ArrayList<Long>();
+			BufferedReader in = new BufferedReader(new FileReader(new File(Workloads.dataDir(), "query" + k)));
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty()) keys.add(bt.sequenceToLong(line));
+			}
+			in.close();
+			queries = new long[keys.size()];
+			for (int i = 0; i < queries.length; i++) {
+				queries[i] = keys.get(i);
+			}
+			if (mode.equals("mapped")) {
+				map = new MappedTree(bt);
+			}
+		}
+
+		public void run(Blackhole bh) {
+			if (mode.equals("mapped")) {
+				for (long key : queries) {
+					bh.consume(map.lookup(key));
+				}
+			}
+			else if (mode.equals("batch")) {
+				long[] sorted = queries.clone();
+				Arrays.sort(sorted);
+				int distinct = 0;
+				for (int i = 0; i < sorted.length; i++) {
+					if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+						sorted[distinct++] = sorted[i];
+					}
+				}
+				bh.consume(bt.lookupAll(Arrays.copyOf(sorted, distinct)));
+			}
+			else {
+				for (long key : queries) {
+					bh.consume(bt.search(bt.root, key));
+				}
+			}
+		}
+
+		@Override
+		public void teardown() throws IOException {
+			bt.close();
+			super.teardown();
+		}
+	}
+
+	/**
+	 * Walks every key of the search tree with a cursor, with or without
+	 * reading nodes ahead. The tree is opened without a cache so every node
+	 * is read each time.
+	 */
+	public static class Scan extends FileWorkload {
+		private BTree bt;
+		private NodePrefetcher prefetcher;
+
+		@Override
+		public void setup(Map<String, String> params) throws IOException {
+			super.setup(params);
+			int k = Integer.parseInt(params.get("k"));
+			int window = Integer.parseInt(params.get("prefetch"));
+			bt = BTree.open(searchTree(workDir, k), null, null);
+			if (window > 0) prefetcher = new NodePrefetcher(bt, window);
+		}
+
+		public void run(Blackhole bh) {
+			BTreeCursor cursor = bt.cursor(0L, prefetcher);
+			while (cursor.next()) {
+				bh.consume(cursor.key());
+				bh.consume(cursor.freq());
+			}
+		}
+
+		@Override
+		public void teardown() throws IOException {
+			if (prefetcher != null) prefetcher.close();
+			bt.close();
+			super.teardown();
+		}
+	}
+
+	/**
+	 * Builds the tree used by the search and scan workloads, with the
+	 * degree that fits a 4096 byte slot.
+	 */
+	static File searchTree(File workDir, int k) throws IOException {
+		int t = BTree.degreeFor(4096, k, 0);
+		BTree built = BTree.create(t, k, new File(workDir, "search").getPath(), new Cache(1000), 0);
+		for (long key : readKeys(k, Workloads.keyLimit())) {
+			built.insert(key);
+		}
+		built.writeCache();
+		built.close();
+		return built.BtreeFile;
+	}
+
+	/**
+	 * Reads up to limit subsequence keys from test5.gbk.
+	 */
+	static long[] readKeys(int k, int limit) throws IOException {
+		GbkScanner scanner = new GbkScanner(new FileInputStream(new File(Workloads.dataDir(), "test5.gbk")), k);
+		long[] keys = new long[limit];
+		int n = 0;
+		long key;
+		while (n < limit && (key = scanner.nextKey()) != -1L) {
+			keys[n++] = key;
+		}
+		scanner.close();
+		return Arrays.copyOf(keys, n);
+	}
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Looks a node up in a Cache and adds it on a miss, which evicts the least
+ * recently used node once the cache is full. The file positions are skewed
+ * toward the start of the file the way the top of a tree is used more than
+ * its leaves.
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	public int size;
+
+	private Workload work;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		work = Workloads.create("CacheLookup", "size", size);
+	}
+
+	@Benchmark
+	public void getOrAdd(Blackhole bh) throws IOException {
+		work.run(bh);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		work.teardown();
+	}
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Turns subsequences into keys with BTree.sequenceToLong and keys back into
+ * subsequences with BTree.longToSequence, one random subsequence from a
+ * fixed set per operation.
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+	@Param({"16", "31"})
+	public int k;
+
+	private Workload encode;
+	private Workload decode;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		encode = Workloads.create("Encode", "k", k);
+		decode = Workloads.create("Decode", "k", k);
+	}
+
+	@Benchmark
+	public void sequenceToLong(Blackhole bh) throws IOException {
+		encode.run(bh);
+	}
+
+	@Benchmark
+	public void longToSequence(Blackhole bh) throws IOException {
+		decode.run(bh);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		encode.teardown();
+		decode.teardown();
+	}
+}
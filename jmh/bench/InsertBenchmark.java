@@ -0,0 +1,58 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Builds a tree with insert and a cache of 1000 nodes from the first
+ * bench.keys subsequences of test5.gbk. Every operation starts from a new
+ * file and ends with the cache written and the tree closed.
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InsertBenchmark {
+
+	@Param({"16", "64", "102"})
+	public int t;
+
+	@Param({"6", "16", "31"})
+	public int k;
+
+	private Workload work;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		work = Workloads.create("Insert", "t", t, "k", k);
+	}
+
+	@Benchmark
+	public void insert(Blackhole bh) throws IOException {
+		work.run(bh);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		work.teardown();
+	}
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writes a full internal node to a page and reads it back, in the fixed
+ * layout or the compressed one, with keys of 16 bases.
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeBenchmark {
+
+	@Param({"16", "102"})
+	public int t;
+
+	@Param({"fixed", "packed"})
+	public String layout;
+
+	private Workload work;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		work = Workloads.create("Node", "t", t, "k", 16, "layout", layout);
+	}
+
+	@Benchmark
+	public void writeRead(Blackhole bh) throws IOException {
+		work.run(bh);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		work.teardown();
+	}
+}
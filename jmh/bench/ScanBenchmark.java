@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Walks every key of the tree SearchBenchmark uses for k = 16 with a
+ * cursor, reading each node as it is reached or reading the next children
+ * ahead with a NodePrefetcher. The tree is opened without a cache so every
+ * node is read each time.
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+	@Param({"0", "16"})
+	public int prefetch;
+
+	private Workload work;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		work = Workloads.create("Scan", "k", 16, "prefetch", prefetch);
+	}
+
+	@Benchmark
+	public void scan(Blackhole bh) throws IOException {
+		work.run(bh);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		work.teardown();
+	}
+}
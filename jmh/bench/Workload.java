@@ -0,0 +1,41 @@
+package bench;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Work measured by one benchmark. The BTree classes are in the default
+ * package, which a named package can not import, so the work is written
+ * next to them in BenchmarkWorkloads and the benchmarks of this package
+ * load it by name through Workloads.
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+public interface Workload {
+
+	/**
+	 * Prepares the data the work needs. Nothing done here is measured.
+	 *
+	 * @param params parameters of the benchmark by name
+	 * @throws IOException if the data files can not be read or the trees written
+	 */
+	void setup(Map<String, String> params) throws IOException;
+
+	/**
+	 * Does the work once. Every result goes to the blackhole, so the JIT
+	 * can not drop the work that made it.
+	 *
+	 * @param bh blackhole of the benchmark
+	 * @throws IOException if a tree can not be read or written
+	 */
+	void run(Blackhole bh) throws IOException;
+
+	/**
+	 * Closes the trees and deletes the files setup made.
+	 *
+	 * @throws IOException if a tree can not be closed
+	 */
+	void teardown() throws IOException;
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads the workloads of BenchmarkWorkloads and holds the settings they
+ * share. The settings are system properties so they reach the forked JVMs
+ * that JMH measures in, which get the arguments of the JVM that started
+ * them:
+ *
+ * bench.dir: directory holding test5.gbk and the query files, default the current directory
+ * bench.keys: subsequences of test5.gbk used to build trees, default 200000
+ *
+ * @author Ben Mcavoy, Nick Figura, Ben Peterson
+ */
+public final class Workloads {
+
+	private Workloads() {
+	}
+
+	/**
+	 * Makes a workload and sets it up.
+	 *
+	 * @param name name of the workload class nested in BenchmarkWorkloads
+	 * @param params parameter names each followed by its value
+	 * @return the workload, ready to run
+	 * @throws IOException if the workload can not read its data
+	 */
+	public static Workload create(String name, Object... params) throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i + 1 < params.length; i += 2) {
+			values.put(params[i].toString(), params[i + 1].toString());
+		}
+		Workload work;
+		try {
+			work = (Workload) Class.forName("BenchmarkWorkloads$" + name).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No workload named " + name, e);
+		}
+		work.setup(values);
+		return work;
+	}
+
+	/**
+	 * Gets the directory holding test5.gbk and the query files.
+	 *
+	 * @return data directory
+	 */
+	public static File dataDir() {
+		return new File(System.getProperty("bench.dir", "."));
+	}
+
+	/**
+	 * Gets the number of subsequences of test5.gbk used to build trees.
+	 *
+	 * @return key limit
+	 */
+	public static int keyLimit() {
+		return Integer.getInteger("bench.keys", 200000);
+	}
+}
@@ -37,10 +37,10 @@ java GeneBankCreateBTree 1 1000 test2.gbk 10 1000
 java GeneBankSearch 1 test2.gbk.btree.data.10.1000 query16_2 100
 
 # java GeneBankCreateBTree 1 0 test5.gbk 16 500
-# java GeneBankSearch 1 test5.gbk.btree.data.16.145 query16_2 40 
+# java GeneBankSearch 1 test5.gbk.btree.data.16.102 query16_2 40 
 
 # java GeneBankCreateBTree 1 0 test5.gbk 16 500 0
-# java GeneBankSearch 0 test5.gbk.btree.data.16.145 query16_2 40 
+# java GeneBankSearch 0 test5.gbk.btree.data.16.102 query16_2 40 
 
 # java GeneBankCreateBTree 1 100 test5.gbk 31 1000 1
 # java GeneBankSearch 1 test5.gbk.btree.data.31.100 query31 10000 
@@ -82,6 +82,15 @@ java GeneBankSearch 1 test2.gbk.btree.data.10.1000 query16_2 100
 # java GeneBankCreateBTree 1 100 test3.gbk 31 500
 # java GeneBankSearch 1 test3.gbk.btree.data.31.100 query31 500 0
 
+elif [ "$1" = "bench" ]
+then
+echo "Running Benchmarks..."
+echo ""
+
+mvn -B -q -Pjmh package
+shift
+java -jar target/benchmarks.jar "$@"
+
 else
-echo "Usage: ./test.sh [run | clean]"
+echo "Usage: ./test.sh [run | clean | bench [JMH options]]"
 fi
@@ -0,0 +1,105 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a tree built by BTreeBulkLoader holds the same keys and
+ * counts as one built with insert, including when the keys are spilled to
+ * more runs than one merge pass takes.
+ *
+ * @author Ben Mcavoy
+ */
+public class BTreeBulkLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void manyRunsMatchInsert() throws IOException {
+		long[] keys = readKeys("test3.gbk", 12);
+		//runs of 50 keys give more runs than one merge pass takes
+		assertTrue(keys.length / 50 > BTreeBulkLoader.MERGE_FAN_IN);
+		assertBulkMatchesInsert(keys, 12, 4, 50);
+	}
+
+	@Test
+	public void oneRunMatchesInsert() throws IOException {
+		assertBulkMatchesInsert(readKeys("test3.gbk", 12), 12, 4, BTreeBulkLoader.DEFAULT_RUN_SIZE);
+	}
+
+	@Test
+	public void repeatedKeysAcrossRunsAreAddedUp() throws IOException {
+		//every run holds the same few keys, so each count comes from every run
+		long[] keys = new long[10000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = i % 7;
+		}
+		assertBulkMatchesInsert(keys, 4, 2, 3);
+	}
+
+	/**
+	 * Builds a tree both ways and compares every key and count in order.
+	 */
+	private void assertBulkMatchesInsert(long[] keys, int k, int t, int runSize) throws IOException {
+		BTree inserted = BTree.create(t, k, new File(folder.getRoot(), "insert").getPath(), new Cache(100), 0);
+		for (long key : keys) {
+			inserted.insert(key);
+		}
+		inserted.writeCache();
+
+		BTree bulk = BTree.create(t, k, new File(folder.getRoot(), "bulk").getPath(), null, 0);
+		BTreeBulkLoader loader = new BTreeBulkLoader(bulk, runSize);
+		for (long key : keys) {
+			loader.add(key);
+		}
+		loader.finish();
+
+		List<long[]> expected = contents(inserted);
+		List<long[]> actual = contents(bulk);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i));
+		}
+		inserted.close();
+		bulk.close();
+	}
+
+	/**
+	 * Lists the keys of a tree in order with their counts.
+	 */
+	private static List<long[]> contents(BTree bt) {
+		List<long[]> contents = new ArrayList<long[]>();
+		BTreeCursor cursor = bt.cursor(0L);
+		while (cursor.next()) {
+			contents.add(new long[] {cursor.key(), cursor.freq()});
+		}
+		return contents;
+	}
+
+	/**
+	 * Reads every subsequence key of a gbk file.
+	 */
+	static long[] readKeys(String gbk, int k) throws IOException {
+		GbkScanner scanner = new GbkScanner(new FileInputStream(gbk), k);
+		long[] keys = new long[1024];
+		int n = 0;
+		long key;
+		while ((key = scanner.nextKey()) != -1L) {
+			if (n == keys.length) keys = Arrays.copyOf(keys, 2 * n);
+			keys[n++] = key;
+		}
+		scanner.close();
+		return Arrays.copyOf(keys, n);
+	}
+}
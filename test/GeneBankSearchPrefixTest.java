@@ -0,0 +1,97 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the prefix search of a canonical tree against the subsequences
+ * of the gbk file counted directly, for prefixes whose subsequences are
+ * stored under themselves, under their reverse complements or both.
+ *
+ * @author Nick Figura
+ */
+public class GeneBankSearchPrefixTest {
+
+	private static final int K = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void canonicalLexTree() throws IOException {
+		assertPrefixes(BTree.LEX_ORDER | BTree.CANONICAL);
+	}
+
+	@Test
+	public void canonicalTree() throws IOException {
+		assertPrefixes(BTree.CANONICAL);
+	}
+
+	@Test
+	public void canonicalBPlusTree() throws IOException {
+		assertPrefixes(BTree.LEX_ORDER | BTree.CANONICAL | BTree.BPLUS);
+	}
+
+	/**
+	 * Builds a canonical tree from test3.gbk and compares the output of
+	 * one search for several prefixes with the expected lines.
+	 */
+	private void assertPrefixes(int flags) throws IOException {
+		//T and G prefixes are mostly stored under their reverse complements, A and C mostly under themselves
+		List<String> prefixes = Arrays.asList("A", "TTT", "GATC", "ACG", "CCGG", "TTT", "GCATGCAT", "ACGTACGTA", "");
+
+		BTree bt = BTree.create(4, K, new File(folder.getRoot(), "canonical").getPath(), new Cache(100), flags);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		GbkScanner scanner = new GbkScanner(new FileInputStream("test3.gbk"), K, bt.isLexOrder());
+		long key;
+		while ((key = scanner.nextKey()) != -1L) {
+			bt.insert(bt.canonicalKey(key));
+			String s = bt.longToSequence(key, K);
+			counts.put(s, counts.containsKey(s) ? counts.get(s) + 1 : 1);
+		}
+		scanner.close();
+		bt.writeCache();
+
+		StringBuilder expected = new StringBuilder();
+		for (String prefix : prefixes) {
+			//every subsequence seen on either strand, in the key order of the tree
+			TreeSet<Long> matches = new TreeSet<Long>();
+			for (String s : counts.keySet()) {
+				for (String x : new String[] {s, reverseComplement(s)}) {
+					if (x.startsWith(prefix)) matches.add(bt.sequenceToLong(x));
+				}
+			}
+			for (long x : matches) {
+				String s = bt.longToSequence(x, K);
+				String rc = reverseComplement(s);
+				int count = count(counts, s) + (rc.equals(s) ? 0 : count(counts, rc));
+				expected.append(s).append(' ').append(count).append('\n');
+			}
+		}
+		assertEquals(expected.toString(), GeneBankSearch.searchCanonicalPrefixes(bt, new ArrayList<String>(prefixes)));
+		bt.close();
+	}
+
+	private static int count(Map<String, Integer> counts, String s) {
+		return counts.containsKey(s) ? counts.get(s) : 0;
+	}
+
+	private static String reverseComplement(String s) {
+		StringBuilder rc = new StringBuilder();
+		for (int i = s.length() - 1; i >= 0; i--) {
+			rc.append("TGCA".charAt("ACGT".indexOf(s.charAt(i))));
+		}
+		return rc.toString();
+	}
+}